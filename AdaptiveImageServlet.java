@@ -4,21 +4,23 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLEncoder;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang3.CharEncoding;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.JcrConstants;
@@ -26,37 +28,42 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.adobe.cq.wcm.core.components.models.Image;
-import com.day.cq.commons.ImageResource;
 import com.day.cq.dam.api.Asset;
 import com.day.cq.dam.api.DamConstants;
 import com.day.cq.dam.api.Rendition;
 import com.day.cq.dam.api.handler.AssetHandler;
 import com.day.cq.dam.api.handler.store.AssetStore;
 import com.day.cq.wcm.api.NameConstants;
-import com.day.cq.wcm.api.policies.ContentPolicy;
-import com.day.cq.wcm.api.policies.ContentPolicyManager;
 import com.day.cq.wcm.foundation.WCMRenditionPicker;
 import com.day.image.Layer;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
 @Component(service = { Servlet.class }, immediate = true)
+@Designate(ocd = AdaptiveImageServlet.Config.class)
 @SlingServletResourceTypes(
         resourceTypes="mysite/components/image",
         methods= HttpConstants.METHOD_GET,
-        extensions={"jpg", "jpeg", "png", "gif", "svg"},
+        extensions={"jpg", "jpeg", "png", "gif", "svg", "webp", "avif"},
         selectors="coreimg")
 public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
 
@@ -69,10 +76,30 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
     public static final int DEFAULT_MAX_SIZE = 3840; // 4K UHD width
     private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveImageServlet.class);
     private static final String DEFAULT_MIME = "image/jpeg";
-    private static final List<String> DEFAULT_SUFFIXS = Arrays.asList("jpg", "jpeg", "png", "gif", "svg");
-    private static final String SELECTOR_QUALITY_KEY = "quality";
-    private static final String SELECTOR_WIDTH_KEY = "width";
+    private static final List<String> DEFAULT_SUFFIXS = Arrays.asList("jpg", "jpeg", "png", "gif", "svg", "webp", "avif");
+    private static final String DERIVATIVE_CACHE_DIRECTORY = "derivatives";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String HEADER_ACCEPT = "Accept";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final int ETAG_LENGTH = 32;
+    private static final long PARALLEL_RESAMPLING_MIN_PIXELS = 1_000_000L;
     private int defaultResizeWidth;
+    private DerivativeCache derivativeCache;
+    private TransformationCoalescer transformationCoalescer;
+    private TransformationBudget transformationBudget;
+    private boolean progressiveJpeg;
+    private boolean asyncWrites;
+    private long asyncWriteTimeout;
+    private boolean pyramidEnabled;
+    private TransformationCoalescer pyramidCoalescer;
+    private ParallelResampler resampler;
+    private int parallelResamplingMaxActive;
+    private ImageFormatNegotiator formatNegotiator = new ImageFormatNegotiator(new String[0]);
+    private int maxAge = -1;
+    private int sharedMaxAge = -1;
 
     @Reference
     private MimeTypeService mimeTypeService;
@@ -80,11 +107,162 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
     @Reference
     private AssetStore assetStore;
 
+    @Reference
+    private RenditionMetadataIndex renditionMetadataIndex;
+
+    @Reference
+    private ImagePipelineMetrics pipelineMetrics;
+
+    @Reference
+    private ContentPolicyCache contentPolicyCache;
+
+    @Reference(policyOption = ReferencePolicyOption.GREEDY)
+    private RenditionSelector renditionSelector;
+
+    @ObjectClassDefinition(name = "MySite - Adaptive Image Servlet", description = "Renders the transformed images of the image component")
+    @interface Config {
+
+        @AttributeDefinition(name = "Derivative cache", description = "Store the encoded bytes of transformed images on local disk")
+        boolean derivative_cache_enabled() default true;
+
+        @AttributeDefinition(name = "Derivative cache directory", description = "Directory holding the cached derivatives; defaults to " +
+                "the bundle's data area")
+        String derivative_cache_directory() default "";
+
+        @AttributeDefinition(name = "Derivative cache size (MB)", description = "Maximum disk space used by the derivative cache; the " +
+                "least recently used derivatives are evicted once it is exceeded")
+        long derivative_cache_max_size_mb() default 1024;
+
+        @AttributeDefinition(name = "Request coalescing", description = "Let concurrent requests for the same transformation wait for " +
+                "the one already in progress instead of repeating it, then stream its result from the derivative cache; requires the " +
+                "derivative cache")
+        boolean coalescing_enabled() default true;
+
+        @AttributeDefinition(name = "Request coalescing timeout (ms)", description = "Maximum time a request waits for an identical " +
+                "transformation in progress before performing it by itself")
+        long coalescing_timeout_ms() default 10000;
+
+        @AttributeDefinition(name = "Pyramid mode", description = "On a derivative cache miss, decode the source once and fill the " +
+                "cache with every width allowed by the component's policy, so that the other srcset candidates are cache hits; concurrent " +
+                "requests for the other widths of the image wait for that pyramid instead of starting their own")
+        boolean pyramid_enabled() default false;
+
+        @AttributeDefinition(name = "Asynchronous writes", description = "Write the images with non-blocking I/O, so that request " +
+                "threads are released as soon as the bytes are ready instead of waiting for slow clients; renditions are always streamed " +
+                "on the request thread; requires a container with asynchronous request support, otherwise images are written on the " +
+                "request thread")
+        boolean async_writes_enabled() default false;
+
+        @AttributeDefinition(name = "Asynchronous write timeout (ms)", description = "Maximum time spent writing an image " +
+                "asynchronously before the connection is given up on")
+        long async_write_timeout_ms() default 60000;
+
+        @AttributeDefinition(name = "Progressive JPEG", description = "Encode transformed JPEG images progressively")
+        boolean progressive_jpeg() default false;
+
+        @AttributeDefinition(name = "Negotiated formats", description = "Mime types that JPEG and PNG requests are transformed to when " +
+                "the client's Accept header explicitly lists them and an encoder is installed, most preferred first; leave empty to " +
+                "disable format negotiation")
+        String[] format_preferences() default { ImageFormatNegotiator.MIME_AVIF, ImageFormatNegotiator.MIME_WEBP };
+
+        @AttributeDefinition(name = "Cache-Control max-age (s)", description = "max-age directive sent with images; a negative value " +
+                "omits it")
+        int cache_control_max_age() default -1;
+
+        @AttributeDefinition(name = "Cache-Control s-maxage (s)", description = "s-maxage directive sent with images, for shared caches " +
+                "such as the CDN; a negative value omits it")
+        int cache_control_s_maxage() default -1;
+
+        @AttributeDefinition(name = "Maximum concurrent transformations", description = "Maximum number of images decoded and " +
+                "transformed at the same time")
+        int transformation_max_concurrent() default 8;
+
+        @AttributeDefinition(name = "Transformation memory budget (MB)", description = "Maximum estimated raster memory (width x " +
+                "height x 4 bytes) of the images decoded at the same time")
+        long transformation_memory_budget_mb() default 512;
+
+        @AttributeDefinition(name = "Transformation queue timeout (ms)", description = "Maximum time a request waits for the " +
+                "transformation budget before being rejected with a 503 status code")
+        long transformation_max_wait_ms() default 2000;
+
+        @AttributeDefinition(name = "Retry-After (s)", description = "Retry-After header value sent with rejected requests")
+        int transformation_retry_after_seconds() default 5;
+
+        @AttributeDefinition(name = "Pixel buffer pool (MB)", description = "Maximum size of the idle raster buffers kept for reuse by " +
+                "later transformations; 0 disables pooling")
+        long pixel_buffer_pool_mb() default 256;
+
+        @AttributeDefinition(name = "Resampling filter", description = "Interpolation kernel used for resizing", options = {
+                @Option(label = "Lanczos (3 lobes)", value = "LANCZOS3"),
+                @Option(label = "Bicubic", value = "BICUBIC")
+        })
+        String resampling_filter() default "LANCZOS3";
+
+        @AttributeDefinition(name = "Resampling threads", description = "Threads resizing the row bands of a single large image; 0 uses " +
+                "one thread per processor")
+        int resampling_threads() default 0;
+
+        @AttributeDefinition(name = "Parallel resampling load limit", description = "Large images are only resized in parallel while at " +
+                "most this many transformations are running; under higher load each one is resized on its request thread")
+        int resampling_parallel_max_active() default 1;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config, BundleContext bundleContext) {
+        derivativeCache = null;
+        if (config.derivative_cache_enabled()) {
+            File directory = StringUtils.isNotEmpty(config.derivative_cache_directory()) ?
+                    new File(config.derivative_cache_directory()) : bundleContext.getDataFile(DERIVATIVE_CACHE_DIRECTORY);
+            if (directory != null) {
+                try {
+                    derivativeCache = new DerivativeCache(directory, config.derivative_cache_max_size_mb() * 1024 * 1024);
+                } catch (IOException e) {
+                    LOGGER.error("Cannot initialise the derivative cache in {}; caching is disabled.", directory.getPath(), e);
+                }
+            } else {
+                LOGGER.warn("The framework doesn't provide a bundle data area; the derivative cache is disabled.");
+            }
+        }
+        progressiveJpeg = config.progressive_jpeg();
+        asyncWrites = config.async_writes_enabled();
+        asyncWriteTimeout = config.async_write_timeout_ms();
+        pyramidEnabled = config.pyramid_enabled() && derivativeCache != null;
+        pyramidCoalescer = pyramidEnabled ? new TransformationCoalescer(config.coalescing_timeout_ms()) : null;
+        formatNegotiator = new ImageFormatNegotiator(config.format_preferences());
+        maxAge = config.cache_control_max_age();
+        sharedMaxAge = config.cache_control_s_maxage();
+        // waiting requests stream the leader's result from the derivative cache
+        transformationCoalescer = config.coalescing_enabled() && derivativeCache != null ?
+                new TransformationCoalescer(config.coalescing_timeout_ms()) : null;
+        transformationBudget = new TransformationBudget(config.transformation_max_concurrent(),
+                config.transformation_memory_budget_mb() * 1024 * 1024, config.transformation_max_wait_ms(),
+                config.transformation_retry_after_seconds(),
+                config.pixel_buffer_pool_mb() > 0 ? new PixelBufferArena(config.pixel_buffer_pool_mb() * 1024 * 1024) : null);
+        ParallelResampler previousResampler = resampler;
+        resampler = new ParallelResampler(config.resampling_threads() > 0 ? config.resampling_threads() :
+                Runtime.getRuntime().availableProcessors(), getResamplingFilter(config.resampling_filter()));
+        parallelResamplingMaxActive = config.resampling_parallel_max_active();
+        if (previousResampler != null) {
+            // requests still resizing with the previous resampler complete, on their own thread if need be
+            previousResampler.shutdown();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (resampler != null) {
+            resampler.close();
+            resampler = null;
+        }
+    }
+
     @Override
     protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
+        StageTimer timer = pipelineMetrics.newTimer();
         try {
             RequestPathInfo requestPathInfo = request.getRequestPathInfo();
-            List<String> selectorList = selectorToList(requestPathInfo.getSelectorString());
+            TransformationSpec selectors = TransformationSpec.parseSelectors(requestPathInfo.getSelectorString());
             String suffix = requestPathInfo.getSuffix();
             String imagePath = suffix;
             String imageName = StringUtils.isNotEmpty(suffix) ? FilenameUtils.getName(suffix) : "";
@@ -130,164 +308,550 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
                     return;
                 }
             }
-            if (!handleIfModifiedSinceHeader(request, response, lastModifiedEpoch)) {
-                Map<String, Integer> transformationMap = getTransformationMap(selectorList, component);
-                Integer jpegQualityInPercentage = transformationMap.get(SELECTOR_QUALITY_KEY);
-                double quality = jpegQualityInPercentage / 100.0d;
-                int resizeWidth = transformationMap.get(SELECTOR_WIDTH_KEY);
-                String imageType = getImageType(requestPathInfo.getExtension());
-                if (imageComponent.source == Source.ASSET) {
-                    transformAndStreamAsset(response, componentProperties, resizeWidth, quality, asset, imageType, imageName);
+            String imageType = getImageType(requestPathInfo.getExtension());
+            ImageFormatNegotiator negotiator = formatNegotiator;
+            if (negotiator.isNegotiable(imageType)) {
+                response.addHeader(HEADER_VARY, HEADER_ACCEPT);
+                imageType = negotiator.negotiate(imageType, request.getHeader(HEADER_ACCEPT));
+            }
+            TransformationSpec spec = getTransformationSpec(selectors, component, componentProperties, imageType);
+            if (imageComponent.source == Source.ASSET) {
+                long assetLastModified = getLastModified(asset);
+                lastModifiedEpoch = Math.max(lastModifiedEpoch, assetLastModified);
+                String transformationKey = DerivativeCache.key(asset.getPath(), assetLastModified, spec);
+                String eTag = getETag(asset, transformationKey);
+                setCacheHeaders(response, eTag);
+                // If-None-Match takes precedence over If-Modified-Since
+                boolean notModified = request.getHeader(HEADER_IF_NONE_MATCH) != null ?
+                        handleIfNoneMatchHeader(request, response, eTag) : handleIfModifiedSinceHeader(request, response, lastModifiedEpoch);
+                if (!notModified) {
+                    if (lastModifiedEpoch > 0) {
+                        response.setDateHeader(HttpConstants.HEADER_LAST_MODIFIED, lastModifiedEpoch);
+                    }
+                    int[] pyramidWidths = pyramidEnabled && spec.getWidth() > 0 ? contentPolicyCache.getPolicy(component).getWidths() :
+                            null;
+                    streamAsset(request, response, spec, asset, imageName, transformationKey, pyramidWidths, timer);
                 }
             }
         } catch (IllegalArgumentException e) {
             LOGGER.error("Invalid image request {}", e.getMessage());
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        } catch (TransformationBudget.TransformationRejectedException e) {
+            LOGGER.warn("Shedding image request {}: {}", request.getRequestURI(), e.getMessage());
+            timer.count(ImagePipelineMetrics.Counter.REJECTED, 1);
+            response.setHeader(HEADER_RETRY_AFTER, String.valueOf(e.getRetryAfter()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
         }
 
     }
 
-    private void transformAndStreamAsset(SlingHttpServletResponse response, ValueMap componentProperties, int resizeWidth, double quality,
-                                         Asset asset, String imageType, String imageName) throws IOException {
+    /**
+     * Streams the asset transformed for the request, either from the derivative cache, from a concurrent identical transformation or by
+     * transforming it.
+     */
+    private void streamAsset(SlingHttpServletRequest request, SlingHttpServletResponse response, TransformationSpec spec, Asset asset,
+                             String imageName, String transformationKey, int[] pyramidWidths, StageTimer timer) throws IOException {
+        String imageType = spec.getMimeType();
+        if (derivativeCache != null) {
+            if (streamCached(request, response, transformationKey, imageType, timer)) {
+                timer.count(ImagePipelineMetrics.Counter.CACHE_HIT, 1);
+                return;
+            }
+            timer.count(ImagePipelineMetrics.Counter.CACHE_MISS, 1);
+        }
+        TransformationCoalescer coalescer = transformationCoalescer;
+        try (TransformationBudget.Lease lease = transformationBudget.lease()) {
+            if (coalescer == null) {
+                transformAndStreamAsset(request, response, spec, asset, imageName, transformationKey, pyramidWidths, lease, timer);
+                return;
+            }
+            TransformationCoalescer.Flight flight = coalescer.begin(transformationKey);
+            if (flight.isLeader()) {
+                try {
+                    transformAndStreamAsset(request, response, spec, asset, imageName, transformationKey, pyramidWidths, lease, timer);
+                } finally {
+                    coalescer.complete(flight);
+                }
+            } else if (coalescer.await(flight, timer) && streamCached(request, response, transformationKey, imageType, timer)) {
+                timer.count(ImagePipelineMetrics.Counter.COALESCED, 1);
+            } else {
+                transformAndStreamAsset(request, response, spec, asset, imageName, transformationKey, pyramidWidths, lease, timer);
+            }
+        }
+    }
+
+    /**
+     * Transforms the asset as configured on the component and the request, and streams the result.
+     */
+    private void transformAndStreamAsset(SlingHttpServletRequest request, SlingHttpServletResponse response, TransformationSpec spec,
+                                         Asset asset, String imageName, @NotNull String transformationKey, @Nullable int[] pyramidWidths,
+                                         @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer) throws IOException {
+        String imageType = spec.getMimeType();
+        int resizeWidth = spec.getWidth();
+        double quality = spec.getQuality() / 100.0d;
         String extension = mimeTypeService.getExtension(imageType);
         if ("gif".equalsIgnoreCase(extension) || "svg".equalsIgnoreCase(extension)) {
+            Rendition original = asset.getOriginal();
+            if ("gif".equalsIgnoreCase(extension) && resizeWidth > 0 && AnimatedGifResizer.MIME_GIF.equals(original.getMimeType())) {
+                AnimatedGifResizer gif = AnimatedGifResizer.open(original.getStream(), resizeWidth);
+                if (gif != null) {
+                    try (AnimatedGifResizer resizer = gif) {
+                        Dimension screen = resizer.getScreenSize();
+                        Dimension output = resizer.getOutputSize();
+                        // the canvas and its copy for frames restoring the previous one, the resampler's rasters
+                        lease.reserve(screen.width, screen.height * 2);
+                        lease.reserve(output.width, screen.height + output.height);
+                        LOGGER.debug("Downscaling GIF asset {} to {}px frame by frame.", asset.getPath(), output.width);
+                        writeEncoded(request, response, imageType, transformationKey, ImagePipelineMetrics.Stage.RESIZE, timer,
+                                target -> resizer.resize(target, resampler, lease));
+                        return;
+                    }
+                }
+            }
             LOGGER.debug("GIF or SVG asset detected; will render the original rendition.");
-            stream(response, asset.getOriginal().getStream(), imageType, imageName);
+            stream(request, response, original.getStream(), original.getSize(), imageType, imageName, timer);
+            return;
+        }
+        if (pyramidWidths != null && pyramidWidths.length > 1) {
+            renderPyramid(request, response, spec, asset, imageName, transformationKey, pyramidWidths, lease, timer);
             return;
         }
-        int rotationAngle = getRotation(componentProperties);
-        Rectangle rectangle = getCropRect(componentProperties);
-        boolean flipHorizontally = componentProperties.get(Image.PN_FLIP_HORIZONTAL, Boolean.FALSE);
-        boolean flipVertically = componentProperties.get(Image.PN_FLIP_VERTICAL, Boolean.FALSE);
-        if (rotationAngle != 0 || rectangle != null || resizeWidth > 0 || flipHorizontally || flipVertically) {
+        int rotationAngle = spec.getRotation();
+        Rectangle rectangle = spec.getCrop();
+        boolean flipHorizontally = spec.isFlippedHorizontally();
+        boolean flipVertically = spec.isFlippedVertically();
+        if (spec.hasGeometry() || resizeWidth > 0) {
             int originalWidth = getDimension(asset.getMetadataValue(DamConstants.TIFF_IMAGEWIDTH));
             int originalHeight = getDimension(asset.getMetadataValue(DamConstants.TIFF_IMAGELENGTH));
-            Layer layer = null;
-            boolean appliedTransformation = false;
-            if (rectangle != null) {
-                double scaling;
-                EnhancedRendition wcmRendition = getWCMRendition(asset);
-                double renditionWidth;
-                Dimension renditionDimension = wcmRendition.getDimension();
-                if (renditionDimension != null) {
-                    renditionWidth = renditionDimension.getWidth();
-
-                } else {
-                    renditionWidth = originalWidth;
-                }
-                if (originalWidth > renditionWidth) {
-                    scaling = originalWidth / renditionWidth;
-                } else {
-                    if (originalWidth > 0 ) {
-                        scaling = renditionWidth / originalWidth;
-                    } else {
-                        scaling = 1.0;
-                    }
-                }
-                layer = getLayer(getOriginal(asset));
-                if (Math.abs(scaling - 1.0D) != 0) {
-                    Rectangle scaledRectangle = new Rectangle(
-                            (int) (rectangle.x * scaling),
-                            (int) (rectangle.y * scaling),
-                            (int) (rectangle.getWidth() * scaling),
-                            (int) (rectangle.getHeight() * scaling)
-                    );
-                    layer.crop(scaledRectangle);
-                } else {
-                    layer.crop(rectangle);
-                }
-                appliedTransformation = true;
-            }
-            if (rotationAngle != 0) {
-                if (layer == null) {
-                    layer = getLayer(getBestRendition(asset, resizeWidth));
-                }
-                layer.rotate(rotationAngle);
-                LOGGER.debug("Applied rotation transformation ({} degrees).", rotationAngle);
-                appliedTransformation = true;
+            if (spec.hasGeometry()) {
+                BufferedImage source = getSourceImage(asset, rectangle, rotationAngle, resizeWidth, imageType, lease, timer);
+                BufferedImage image = transform(source, spec, resizeWidth, lease, timer);
+                LOGGER.debug("Transformed {} (crop {}, rotation {} degrees, flips {}/{}) into {}x{}px.", asset.getPath(), rectangle,
+                        rotationAngle, flipHorizontally, flipVertically, image.getWidth(), image.getHeight());
+                writeLayer(request, response, new Layer(image), imageType, quality, transformationKey, lease, timer);
+                return;
             }
-            if (flipHorizontally) {
-                if (layer == null) {
-                    layer = getLayer(getBestRendition(asset, resizeWidth));
-                }
-                layer.flipHorizontally();
-                LOGGER.debug("Flipped image horizontally.");
-                appliedTransformation = true;
+            EnhancedRendition rendition = getBestRendition(asset, resizeWidth, imageType, timer);
+            Dimension dimension = rendition.getDimension();
+            if (dimension != null) {
+                // keeping aspect ratio
+                originalHeight = Math.round(originalHeight * (dimension.width / (float)originalWidth));
+                originalWidth = dimension.width;
             }
-            if (flipVertically) {
-                if (layer == null) {
-                    layer = getLayer(getBestRendition(asset, resizeWidth));
-                }
-                layer.flipVertically();
-                LOGGER.debug("Flipped image vertically.");
-                appliedTransformation = true;
-            }
-            if (!appliedTransformation) {
-                EnhancedRendition rendition = getBestRendition(asset, resizeWidth);
-                Dimension dimension = rendition.getDimension();
-                if (dimension != null) {
-                    // keeping aspect ratio
-                    originalHeight = Math.round(originalHeight * (dimension.width / (float)originalWidth));
-                    originalWidth = dimension.width;
-                }
-                if (originalWidth > resizeWidth) {
-                    int resizeHeight = calculateResizeHeight(originalWidth, originalHeight, resizeWidth);
-                    if (resizeHeight > 0 && resizeHeight != originalHeight) {
-                        layer = getLayer(rendition);
-                        if (layer.getBackground().getTransparency() != Transparency.OPAQUE &&
-                                ("jpg".equalsIgnoreCase(extension) || "jpeg".equalsIgnoreCase(extension))) {
-                            LOGGER.debug("Adding default (white) background to a transparent PNG: {}/{}", asset.getPath(),
-                                    rendition.getName());
-                            layer.setBackground(Color.white);
-                        }
-                        layer.resize(resizeWidth, resizeHeight);
-                        response.setContentType(imageType);
-                        LOGGER.debug("Resizing asset {}/{} to requested width of {}px; rendering.",asset.getPath(), rendition.getName(), resizeWidth);
-                        layer.write(imageType, quality, response.getOutputStream());
-                    } else {
-                        LOGGER.debug("Found rendition {}/{} has a width of {}px and does not require a resize for requested width of {}px",
-                                asset.getPath(), rendition.getName(), dimension != null ? dimension.getWidth() : null, resizeWidth);
-                        stream(response, rendition.getStream(), imageType, imageName);
+            if (originalWidth > resizeWidth) {
+                int resizeHeight = calculateResizeHeight(originalWidth, originalHeight, resizeWidth);
+                if (resizeHeight > 0 && resizeHeight != originalHeight) {
+                    Layer layer = getSubsampledLayer(rendition, resizeWidth, lease, timer);
+                    long start = timer.start();
+                    layer = new Layer(resize(layer.getImage(), resizeWidth, resizeHeight, lease));
+                    timer.stop(ImagePipelineMetrics.Stage.RESIZE, start);
+                    if (layer.getBackground().getTransparency() != Transparency.OPAQUE &&
+                            ("jpg".equalsIgnoreCase(extension) || "jpeg".equalsIgnoreCase(extension))) {
+                        LOGGER.debug("Adding default (white) background to a transparent PNG: {}/{}", asset.getPath(),
+                                rendition.getName());
+                        layer.setBackground(Color.white);
                     }
+                    LOGGER.debug("Resizing asset {}/{} to requested width of {}px; rendering.",asset.getPath(), rendition.getName(), resizeWidth);
+                    writeLayer(request, response, layer, imageType, quality, transformationKey, lease, timer);
                 } else {
                     LOGGER.debug("Found rendition {}/{} has a width of {}px and does not require a resize for requested width of {}px",
                             asset.getPath(), rendition.getName(), dimension != null ? dimension.getWidth() : null, resizeWidth);
-                    stream(response, rendition.getStream(), imageType, imageName);
+                    streamRendition(request, response, rendition, imageType, imageName, quality, transformationKey, lease, timer);
                 }
             } else {
-                resizeAndStreamLayer(response, layer, imageType, resizeWidth, quality);
+                LOGGER.debug("Found rendition {}/{} has a width of {}px and does not require a resize for requested width of {}px",
+                        asset.getPath(), rendition.getName(), dimension != null ? dimension.getWidth() : null, resizeWidth);
+                streamRendition(request, response, rendition, imageType, imageName, quality, transformationKey, lease, timer);
             }
         } else {
             LOGGER.debug("No need to perform any processing on asset {}; rendering.", asset.getPath());
-            stream(response, getOriginal(asset).getStream(), imageType, imageName);
+            streamRendition(request, response, getOriginal(asset), imageType, imageName, quality, transformationKey, lease, timer);
         }
     }
 
     /**
-     * Given a {@link Layer}, this method will attempt to resize it proportionally given the supplied {@code resizeWidth}. If the resize
-     * operation would result in up-scaling, then the layer is rendered without any resize operation applied.
+     * Decodes the source of a crop, rotation or flip transformation: the component's crop region of the original, or the rendition best
+     * suited for the requested width if the image isn't cropped. The source is subsampled as far as the requested width allows.
      *
-     * @param response    the response
-     * @param layer       the layer
-     * @param imageType   the mime type of the image represented by the {@code layer}
-     * @param resizeWidth the resize width
-     * @throws IOException if the streaming of the {@link Layer} into the response's output stream cannot be performed
+     * @return the source raster, already cropped
      */
-    private void resizeAndStreamLayer(SlingHttpServletResponse response, Layer layer, String imageType, int resizeWidth, double quality)
+    @NotNull
+    private BufferedImage getSourceImage(@NotNull Asset asset, @Nullable Rectangle rectangle, int rotationAngle, int resizeWidth,
+                                         @NotNull String imageType, @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer)
             throws IOException {
-        int width = layer.getWidth();
-        int height = layer.getHeight();
-        int resizeHeight = calculateResizeHeight(width, height, resizeWidth);
-        if (resizeHeight > 0) {
-            layer.resize(resizeWidth, resizeHeight);
-            response.setContentType(imageType);
-            LOGGER.debug("Resizing processed (cropped and/or rotated) layer from its current width of {}px to {}px.", width, resizeWidth);
-            layer.write(imageType, quality, response.getOutputStream());
+        EnhancedRendition rendition;
+        Rectangle region = null;
+        Dimension sourceDimension;
+        if (rectangle != null) {
+            int originalWidth = getDimension(asset.getMetadataValue(DamConstants.TIFF_IMAGEWIDTH));
+            double scaling;
+            EnhancedRendition wcmRendition = getWCMRendition(asset, timer);
+            double renditionWidth;
+            Dimension renditionDimension = wcmRendition.getDimension();
+            if (renditionDimension != null) {
+                renditionWidth = renditionDimension.getWidth();
+
+            } else {
+                renditionWidth = originalWidth;
+            }
+            if (originalWidth > renditionWidth) {
+                scaling = originalWidth / renditionWidth;
+            } else {
+                if (originalWidth > 0 ) {
+                    scaling = renditionWidth / originalWidth;
+                } else {
+                    scaling = 1.0;
+                }
+            }
+            Rectangle cropRectangle = rectangle;
+            if (Math.abs(scaling - 1.0D) != 0) {
+                cropRectangle = new Rectangle(
+                        (int) (rectangle.x * scaling),
+                        (int) (rectangle.y * scaling),
+                        (int) (rectangle.getWidth() * scaling),
+                        (int) (rectangle.getHeight() * scaling)
+                );
+            }
+            // only decode the cropped region
+            rendition = getOriginal(asset);
+            region = cropRectangle;
+            sourceDimension = cropRectangle.getSize();
         } else {
-            response.setContentType(imageType);
-            LOGGER.debug("No need to resize processed (cropped and/or rotated) layer since it would lead to upscaling; rendering.");
-            layer.write(imageType, quality, response.getOutputStream());
+            rendition = getBestRendition(asset, resizeWidth, imageType, timer);
+            sourceDimension = rendition.getDimension();
+        }
+        int subsampling = sourceDimension != null ?
+                getSubsampling(sourceDimension.width, sourceDimension.height, rotationAngle, resizeWidth) : 1;
+        return getImage(rendition, region, subsampling, lease, timer);
+    }
+
+
+    /**
+     * Fills the derivative cache with every width allowed by the component's policy, unless another request is already doing so for the
+     * same asset and transformation, whatever width it requested: the request then waits for that pyramid and streams its width from the
+     * derivative cache, or transforms it alone if the pyramid didn't produce it in time.
+     */
+    private void renderPyramid(SlingHttpServletRequest request, SlingHttpServletResponse response, TransformationSpec spec, Asset asset,
+                               String imageName, @NotNull String transformationKey, @NotNull int[] widths,
+                               @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer) throws IOException {
+        TransformationCoalescer coalescer = pyramidCoalescer;
+        long assetLastModified = getLastModified(asset);
+        // the same key for all the widths
+        TransformationCoalescer.Flight flight = coalescer.begin(DerivativeCache.key(asset.getPath(), assetLastModified,
+                spec.withWidth(0)));
+        if (!flight.isLeader()) {
+            coalescer.await(flight, timer);
+        }
+        try {
+            // the width may have been rendered by a pyramid completed since the request's cache lookup
+            if (streamCached(request, response, transformationKey, spec.getMimeType(), timer)) {
+                timer.count(ImagePipelineMetrics.Counter.COALESCED, 1);
+                return;
+            }
+            if (!flight.isLeader()) {
+                LOGGER.debug("Width {} of asset {} wasn't rendered by a concurrent pyramid in time; rendering it alone.", spec.getWidth(),
+                        asset.getPath());
+                transformAndStreamAsset(request, response, spec, asset, imageName, transformationKey, null, lease, timer);
+                return;
+            }
+            renderPyramid(request, response, spec, asset, assetLastModified, transformationKey, widths, lease, timer);
+        } finally {
+            if (flight.isLeader()) {
+                coalescer.complete(flight);
+            }
+        }
+    }
+
+    /**
+     * Decodes the source once and produces every width allowed by the component's policy, from the largest to the smallest, each one
+     * resampled from the previous one. Each width is encoded straight into the derivative cache; the requested one is streamed as it is
+     * encoded and flushed, so that the client has its image while the smaller widths are rendered. A failure rendering those is only
+     * logged, the response being already complete.
+     */
+    private void renderPyramid(SlingHttpServletRequest request, SlingHttpServletResponse response, TransformationSpec spec, Asset asset,
+                               long assetLastModified, @NotNull String transformationKey, @NotNull int[] widths,
+                               @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer) throws IOException {
+        String imageType = spec.getMimeType();
+        int resizeWidth = spec.getWidth();
+        double quality = spec.getQuality() / 100.0d;
+        int largestWidth = widths[widths.length - 1];
+        BufferedImage source = getSourceImage(asset, spec.getCrop(), spec.getRotation(), largestWidth, imageType, lease, timer);
+        BufferedImage image = transform(source, spec, largestWidth, lease, timer);
+
+        boolean streamed = false;
+        for (int i = widths.length - 1; i >= 0; i--) {
+            try {
+                if (i < widths.length - 1) {
+                    if (widths[i] == widths[i + 1]) {
+                        continue;
+                    }
+                    long start = timer.start();
+                    Dimension size = FusedTransform.getOutputSize(image.getWidth(), image.getHeight(), 0, widths[i]);
+                    if (size.width != image.getWidth()) {
+                        BufferedImage resized = resize(image, size.width, size.height, lease);
+                        if (image != source) {
+                            lease.release(image);
+                        }
+                        image = resized;
+                    }
+                    timer.stop(ImagePipelineMetrics.Stage.RESIZE, start);
+                }
+                BufferedImage output = image;
+                Encoder encoder = target -> encode(output, imageType, quality, target, lease);
+                if (widths[i] == resizeWidth) {
+                    writeEncoded(request, response, imageType, transformationKey, ImagePipelineMetrics.Stage.ENCODE, timer, encoder);
+                    if (!request.isAsyncStarted()) {
+                        response.flushBuffer();
+                    }
+                    streamed = true;
+                } else {
+                    storeEncoded(derivativeCache, DerivativeCache.key(asset.getPath(), assetLastModified, spec.withWidth(widths[i])),
+                            ImagePipelineMetrics.Stage.ENCODE, timer, encoder);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!streamed) {
+                    throw e;
+                }
+                LOGGER.warn("Cannot render width {} of asset {}; skipping the smaller widths.", widths[i], asset.getPath(), e);
+                break;
+            }
+        }
+        LOGGER.debug("Rendered {} widths of asset {} from a single decode.", widths.length, asset.getPath());
+    }
+
+    /**
+     * Rotates and flips a source raster at its own scale, then resizes the result to the requested width with the
+     * {@link ParallelResampler}, so that the scale factor doesn't matter: the source may be much larger than the output when it could
+     * not be subsampled while decoding, e.g. when it's decoded by the asset handler or when a large crop region is requested.
+     *
+     * @param source the source raster, already cropped
+     * @param spec   the transformation, whose rotation and flips are applied
+     * @param width  the requested width, {@code 0} if the image is not resized
+     * @param lease  the lease the rasters' buffers are taken from
+     * @param timer  the request's stage timer
+     * @return the transformed raster
+     */
+    @NotNull
+    private BufferedImage transform(@NotNull BufferedImage source, @NotNull TransformationSpec spec, int width,
+                                    @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer) throws IOException {
+        int rotationAngle = spec.getRotation();
+        Dimension output = FusedTransform.getOutputSize(source.getWidth(), source.getHeight(), rotationAngle, width);
+        long start = timer.start();
+        if (rotationAngle % 360 != 0 || spec.isFlippedHorizontally() || spec.isFlippedVertically()) {
+            Dimension rotated = FusedTransform.getRotatedSize(source.getWidth(), source.getHeight(), rotationAngle);
+            lease.reserve(rotated.width, rotated.height);
+        }
+        BufferedImage image = FusedTransform.render(source, rotationAngle, spec.isFlippedHorizontally(), spec.isFlippedVertically(),
+                lease);
+        timer.stop(ImagePipelineMetrics.Stage.TRANSFORM, start);
+        if (output.width != image.getWidth() || output.height != image.getHeight()) {
+            start = timer.start();
+            BufferedImage resized = resize(image, output.width, output.height, lease);
+            if (image != source) {
+                lease.release(image);
+            }
+            image = resized;
+            timer.stop(ImagePipelineMetrics.Stage.RESIZE, start);
+        }
+        return image;
+    }
+
+    /**
+     * Resizes an image with the {@link ParallelResampler}. Large images are resized in parallel, unless other transformations are
+     * running and already keep the processors busy.
+     */
+    @NotNull
+    private BufferedImage resize(@NotNull BufferedImage image, int width, int height, @NotNull TransformationBudget.Lease lease)
+            throws IOException {
+        // the intermediate raster of the horizontal pass and the output
+        lease.reserve(width, image.getHeight() + height);
+        boolean parallel = (long) image.getWidth() * image.getHeight() >= PARALLEL_RESAMPLING_MIN_PIXELS &&
+                transformationBudget.getActiveTransformations() <= parallelResamplingMaxActive;
+        return resampler.resample(image, width, height, parallel, lease);
+    }
+
+    /**
+     * Encodes an image into the given stream.
+     */
+    private void encode(@NotNull BufferedImage image, @NotNull String imageType, double quality, @NotNull OutputStream output,
+                        @NotNull TransformationBudget.Lease lease) throws IOException {
+        if (!ImageEncoder.encode(image, imageType, quality, progressiveJpeg, output, lease)) {
+            new Layer(image).write(imageType, quality, output);
+        }
+    }
+
+    /**
+     * Streams a rendition that doesn't need any transformation. If the rendition has to be delivered in a format negotiated with the
+     * client, it is re-encoded instead.
+     */
+    private void streamRendition(SlingHttpServletRequest request, SlingHttpServletResponse response, EnhancedRendition rendition,
+                                 String imageType, String imageName, double quality, @NotNull String transformationKey,
+                                 @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer) throws IOException {
+        if ((ImageFormatNegotiator.MIME_WEBP.equals(imageType) || ImageFormatNegotiator.MIME_AVIF.equals(imageType))
+                && !imageType.equals(rendition.getMimeType())) {
+            LOGGER.debug("Re-encoding rendition {} as {}.", rendition.getPath(), imageType);
+            writeLayer(request, response, getLayer(rendition, lease, timer), imageType, quality, transformationKey, lease, timer);
+            return;
+        }
+        stream(request, response, rendition.getStream(), rendition.getSize(), imageType, imageName, timer);
+    }
+
+    /**
+     * Encodes the {@link Layer} into the response as the encoder produces the bytes, as {@link #writeEncoded} describes.
+     *
+     * @param request           the request
+     * @param response          the response
+     * @param layer             the layer
+     * @param imageType         the mime type of the image represented by the {@code layer}
+     * @param quality           the encoding quality
+     * @param transformationKey the key identifying the transformation, used for caching the result
+     * @param lease             the transformation budget lease, from which the encoder's rasters are taken
+     * @param timer             the request's stage timer
+     * @throws IOException if the {@link Layer} cannot be encoded into the response's output stream
+     */
+    private void writeLayer(SlingHttpServletRequest request, SlingHttpServletResponse response, Layer layer, String imageType,
+                            double quality, @NotNull String transformationKey, @NotNull TransformationBudget.Lease lease,
+                            @NotNull StageTimer timer) throws IOException {
+        writeEncoded(request, response, imageType, transformationKey, ImagePipelineMetrics.Stage.ENCODE, timer, output -> {
+            if (!ImageEncoder.encode(layer.getImage(), imageType, quality, progressiveJpeg, output, lease)) {
+                layer.write(imageType, quality, output);
+            }
+        });
+    }
+
+    /**
+     * Writes an image into the response as the {@code encoder} produces its bytes, teeing them into the derivative cache's temporary file
+     * if the cache is enabled, so that the encoded image is never held in memory. When the response is written asynchronously, the image
+     * is encoded into the derivative cache first and streamed from there by the {@link AsyncResponseWriter}; it's only encoded into
+     * memory if the cache is disabled or cannot store it.
+     *
+     * @param request           the request
+     * @param response          the response
+     * @param imageType         the mime type of the image
+     * @param transformationKey the key identifying the transformation, used for caching the result
+     * @param stage             the pipeline stage the encoder's time is recorded as
+     * @param timer             the request's stage timer
+     * @param encoder           writes the image's bytes
+     * @throws IOException if the image cannot be encoded into the response's output stream
+     */
+    private void writeEncoded(SlingHttpServletRequest request, SlingHttpServletResponse response, String imageType,
+                              @NotNull String transformationKey, @NotNull ImagePipelineMetrics.Stage stage, @NotNull StageTimer timer,
+                              @NotNull Encoder encoder) throws IOException {
+        timer.commit(response);
+        response.setContentType(imageType);
+        DerivativeCache cache = derivativeCache;
+        if (isAsyncWrite(request)) {
+            if (cache != null && storeEncoded(cache, transformationKey, stage, timer, encoder) &&
+                    streamCached(request, response, transformationKey, imageType, timer)) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            long start = timer.start();
+            encoder.encode(bytes);
+            timer.stop(stage, start);
+            timer.count(ImagePipelineMetrics.Counter.BYTES_STREAMED, bytes.size());
+            response.setContentLength(bytes.size());
+            AsyncResponseWriter.write(request, response, ByteRangeStreamer.of(bytes.toByteArray()), asyncWriteTimeout);
+            return;
+        }
+        try (DerivativeCache.Entry entry = cache != null ? cache.create(transformationKey) : null) {
+            CountingOutputStream output = new CountingOutputStream(entry != null ?
+                    new TeeOutputStream(response.getOutputStream(), entry.getOutputStream()) : response.getOutputStream());
+            long start = timer.start();
+            encoder.encode(output);
+            output.flush();
+            timer.stop(stage, start);
+            timer.count(ImagePipelineMetrics.Counter.BYTES_STREAMED, output.getByteCount());
+            if (entry != null) {
+                entry.commit();
+            }
+        }
+    }
+
+    /**
+     * Encodes an image into the derivative cache.
+     *
+     * @param cache             the derivative cache
+     * @param transformationKey the key identifying the transformation
+     * @param stage             the pipeline stage the encoder's time is recorded as
+     * @param timer             the request's stage timer
+     * @param encoder           writes the image's bytes
+     * @return {@code true} if the image was stored, {@code false} if the cache could not store it
+     * @throws IOException if the image cannot be encoded
+     */
+    private boolean storeEncoded(@NotNull DerivativeCache cache, @NotNull String transformationKey,
+                                 @NotNull ImagePipelineMetrics.Stage stage, @NotNull StageTimer timer, @NotNull Encoder encoder)
+            throws IOException {
+        try (DerivativeCache.Entry entry = cache.create(transformationKey)) {
+            if (entry == null) {
+                return false;
+            }
+            long start = timer.start();
+            encoder.encode(entry.getOutputStream());
+            timer.stop(stage, start);
+            return entry.commit();
+        }
+    }
+
+    /**
+     * Streams the cached derivative stored under {@code transformationKey}, if there is one, or the requested ranges of it.
+     *
+     * @param request           the request
+     * @param response          the response
+     * @param transformationKey the key identifying the transformation
+     * @param contentType       the content type of the derivative
+     * @param timer             the request's stage timer
+     * @return {@code true} if the derivative was found and streamed, {@code false} otherwise
+     * @throws IOException if the cached derivative cannot be streamed
+     */
+    private boolean streamCached(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response,
+                                 @NotNull String transformationKey, @NotNull String contentType, @NotNull StageTimer timer)
+            throws IOException {
+        FileChannel channel = derivativeCache.open(transformationKey);
+        if (channel == null) {
+            return false;
         }
+        long size;
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        timer.commit(response);
+        long start = timer.start();
+        long bytes = writeBody(request, response, ByteRangeStreamer.prepare(request, response, channel, size, contentType));
+        timer.stop(ImagePipelineMetrics.Stage.STREAM, start);
+        timer.count(ImagePipelineMetrics.Counter.BYTES_STREAMED, bytes);
+        LOGGER.debug("Streamed {} bytes of a cached derivative.", bytes);
+        return true;
+    }
+
+    /**
+     * Writes a response's body, asynchronously if enabled and supported for the request, on the request thread otherwise. Only bodies
+     * held in memory or in the derivative cache are written asynchronously: renditions are streams of repository binaries, which can't
+     * be read once the request's session is closed, nor with blocking reads on the container's I/O threads. The body is closed once
+     * written.
+     *
+     * @param request  the request
+     * @param response the response, whose status and headers are already set
+     * @param body     the body
+     * @return the number of bytes of the binary written, or handed over to be written asynchronously
+     * @throws IOException if the body cannot be written
+     */
+    private long writeBody(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response,
+                           @NotNull ByteRangeStreamer.Body body) throws IOException {
+        if (body.isDetached() && isAsyncWrite(request)) {
+            AsyncResponseWriter.write(request, response, body, asyncWriteTimeout);
+            return Math.max(0, body.getLength());
+        }
+        try (ByteRangeStreamer.Body blocking = body) {
+            return blocking.writeTo(response.getOutputStream());
+        }
+    }
+
+    private boolean isAsyncWrite(@NotNull SlingHttpServletRequest request) {
+        return asyncWrites && AsyncResponseWriter.isSupported(request);
     }
 
     /**
@@ -295,24 +859,122 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
      * being used, based on rendition mime type.
      *
      * @param rendition - the rendition
+     * @param lease     - the transformation budget lease, in which the memory of the decoded raster is reserved
+     * @param timer     - the request's stage timer
      * @return a layer for the rendition
      * @throws IOException if a {@link Layer} cannot be created for the given rendition
+     * @throws TransformationBudget.TransformationRejectedException if the transformation budget is exhausted
      */
     @NotNull
-    private Layer getLayer(@NotNull EnhancedRendition rendition) throws IOException {
+    private Layer getLayer(@NotNull EnhancedRendition rendition, @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer)
+            throws IOException {
+        Dimension dimension = rendition.getDimension();
+        if (dimension != null) {
+            lease.reserve(dimension.width, dimension.height);
+        } else {
+            lease.reserve(DEFAULT_MAX_SIZE, DEFAULT_MAX_SIZE);
+        }
+        long start = timer.start();
         AssetHandler assetHandler = assetStore.getAssetHandler(rendition.getMimeType());
-        return new Layer(assetHandler.getImage(rendition.getRendition()));
+        Layer layer = new Layer(assetHandler.getImage(rendition.getRendition()));
+        timer.stop(ImagePipelineMetrics.Stage.DECODE, start);
+        timer.count(ImagePipelineMetrics.Counter.DECODED_PIXELS, (long) layer.getWidth() * layer.getHeight());
+        return layer;
+    }
+
+    /**
+     * Return the raster of the given region of the provided {@link EnhancedRendition}, decoding only every {@code subsampling}-th pixel
+     * when possible. If the region cannot be decoded by itself, the whole rendition is decoded and the region is returned as a view on
+     * its raster.
+     *
+     * @param rendition   - the rendition
+     * @param region      - the region of the rendition to decode, {@code null} for the whole rendition
+     * @param subsampling - the subsampling factor, {@code 1} to decode every pixel
+     * @param lease       - the transformation budget lease, in which the memory of the decoded raster is reserved
+     * @param timer       - the request's stage timer
+     * @return the raster of the rendition's region
+     * @throws IOException if the rendition cannot be decoded or the region lies outside of it
+     * @throws TransformationBudget.TransformationRejectedException if the transformation budget is exhausted
+     */
+    @NotNull
+    private BufferedImage getImage(@NotNull EnhancedRendition rendition, @Nullable Rectangle region, int subsampling,
+                                   @NotNull TransformationBudget.Lease lease, @NotNull StageTimer timer) throws IOException {
+        if (region == null && subsampling <= 1) {
+            return getLayer(rendition, lease, timer).getImage();
+        }
+        Dimension dimension = rendition.getDimension();
+        int width = region != null ? region.width : (dimension != null ? dimension.width : DEFAULT_MAX_SIZE);
+        int height = region != null ? region.height : (dimension != null ? dimension.height : DEFAULT_MAX_SIZE);
+        int reserved = lease.reserve((width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling);
+        long start = timer.start();
+        BufferedImage image = RegionDecoder.decode(rendition, region, subsampling, lease);
+        if (image != null) {
+            timer.stop(ImagePipelineMetrics.Stage.DECODE, start);
+            timer.count(ImagePipelineMetrics.Counter.DECODED_PIXELS, (long) image.getWidth() * image.getHeight());
+            return image;
+        }
+        // the asset handler decodes the whole rendition, whose memory getLayer reserves
+        lease.unreserve(reserved);
+        image = getLayer(rendition, lease, timer).getImage();
+        if (region != null) {
+            Rectangle clip = region.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+            if (clip.isEmpty()) {
+                throw new IOException(String.format("Crop region %s lies outside of rendition %s", region, rendition.getPath()));
+            }
+            image = image.getSubimage(clip.x, clip.y, clip.width, clip.height);
+        }
+        return image;
+    }
+
+    /**
+     * Return a {@link Layer} for the whole {@link EnhancedRendition}, subsampled as far as the requested width allows.
+     *
+     * @param rendition   - the rendition
+     * @param resizeWidth - the requested width
+     * @param lease       - the transformation budget lease, in which the memory of the decoded raster is reserved
+     * @param timer       - the request's stage timer
+     * @return a layer for the rendition
+     * @throws IOException if a {@link Layer} cannot be created for the given rendition
+     */
+    @NotNull
+    private Layer getSubsampledLayer(@NotNull EnhancedRendition rendition, int resizeWidth, @NotNull TransformationBudget.Lease lease,
+                                     @NotNull StageTimer timer) throws IOException {
+        Dimension dimension = rendition.getDimension();
+        int subsampling = dimension != null ? getSubsampling(dimension.width, dimension.height, 0, resizeWidth) : 1;
+        if (subsampling <= 1) {
+            return getLayer(rendition, lease, timer);
+        }
+        return new Layer(getImage(rendition, null, subsampling, lease, timer));
+    }
+
+    /**
+     * Computes the factor by which a source of the given size can be subsampled while decoding, given the rotation that will be applied
+     * to it and the requested width.
+     *
+     * @param width         the source width, in pixels
+     * @param height        the source height, in pixels
+     * @param rotationAngle the rotation angle
+     * @param resizeWidth   the requested width
+     * @return the subsampling factor, {@code 1} meaning no subsampling
+     */
+    private int getSubsampling(int width, int height, int rotationAngle, int resizeWidth) {
+        // subsampling shrinks the rotated bounds by the same factor as the source
+        return RegionDecoder.getSubsampling(FusedTransform.getRotatedSize(width, height, rotationAngle).width, resizeWidth);
     }
 
     /**
      * Given an {@link Asset}, this method will return the WCM rendition (cq5dam.web.*)
      *
      * @param asset the asset for which to retrieve the web rendition
+     * @param timer the request's stage timer
      * @return the WCM rendition, if found the original
      */
     @NotNull
-    private EnhancedRendition getWCMRendition(@NotNull Asset asset) {
-        return new EnhancedRendition(asset.getRendition(new WCMRenditionPicker()));
+    private EnhancedRendition getWCMRendition(@NotNull Asset asset, @NotNull StageTimer timer) {
+        long start = timer.start();
+        EnhancedRendition rendition = toEnhancedRendition(asset, asset.getRendition(new WCMRenditionPicker()));
+        timer.stop(ImagePipelineMetrics.Stage.RESOLVE, start);
+        return rendition;
     }
 
     /**
@@ -321,31 +983,34 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
      *
      * @param asset the asset for which to retrieve the best rendition
      * @param width the width
+     * @param imageType the mime type the image is delivered in
+     * @param timer the request's stage timer
      * @return a rendition that is suitable for that width
      * @throws IOException when the best suited rendition is too large for processing
      */
     @NotNull
-    private EnhancedRendition getBestRendition(@NotNull Asset asset, int width) throws IOException {
-        // Sort renditions by file size
-        SortedSet<Rendition> renditions = new TreeSet<>((o1, o2) -> Long.valueOf(o1.getSize() - o2.getSize()).intValue());
-        renditions.addAll(asset.getRenditions());
+    private EnhancedRendition getBestRendition(@NotNull Asset asset, int width, @NotNull String imageType, @NotNull StageTimer timer)
+            throws IOException {
+        long start = timer.start();
         EnhancedRendition bestRendition = null;
-        // Find first rendition that has a width larger or equal than wanted
-        for (Rendition rendition : renditions) {
-            EnhancedRendition enhancedRendition = new EnhancedRendition(rendition);
-            Dimension dimension = enhancedRendition.getDimension();
-            if (dimension != null && dimension.getWidth() >= width) {
-                bestRendition = enhancedRendition;
-                if (StringUtils.equals(bestRendition.getPath(), asset.getOriginal().getPath())) {
-                }
-                break;
+        RenditionInfo renditionInfo = renditionSelector.select(renditionMetadataIndex.getRenditions(asset), width, imageType);
+        if (renditionInfo != null) {
+            Rendition rendition = asset.getRendition(renditionInfo.getName());
+            if (rendition != null) {
+                bestRendition = new EnhancedRendition(rendition, renditionInfo.getDimension());
             }
         }
         // If no rendition was found, attempt to use original
         if (bestRendition == null) {
-            return getOriginal(asset);
+            timer.count(ImagePipelineMetrics.Counter.ORIGINAL_FALLBACK, 1);
+            bestRendition = getOriginal(asset);
+        } else {
+            bestRendition = filter(bestRendition);
         }
-        return filter(bestRendition);
+        LOGGER.debug("Selected rendition {} of asset {} for width {} as {}.", bestRendition.getName(), asset.getPath(), width, imageType);
+        timer.rendition(bestRendition.getName());
+        timer.stop(ImagePipelineMetrics.Stage.RESOLVE, start);
+        return bestRendition;
     }
 
     /**
@@ -357,10 +1022,26 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
      */
     @NotNull
     private EnhancedRendition getOriginal(@NotNull Asset asset) throws IOException {
-        EnhancedRendition original = new EnhancedRendition(asset.getOriginal());
+        EnhancedRendition original = toEnhancedRendition(asset, asset.getOriginal());
         return filter(original);
     }
 
+    /**
+     * Wraps the given rendition, taking its dimension from the {@link RenditionMetadataIndex} when known.
+     *
+     * @param asset     the rendition's asset
+     * @param rendition the rendition
+     * @return the rendition delegate
+     */
+    @NotNull
+    private EnhancedRendition toEnhancedRendition(@NotNull Asset asset, @NotNull Rendition rendition) {
+        RenditionInfo renditionInfo = renditionMetadataIndex.getRendition(asset, rendition.getName());
+        if (renditionInfo != null) {
+            return new EnhancedRendition(rendition, renditionInfo.getDimension());
+        }
+        return new EnhancedRendition(rendition);
+    }
+
     /**
      * Given a {@link EnhancedRendition} it will check its size to see if it's too large for processing.
      *
@@ -378,62 +1059,49 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
         throw new IOException(String.format("Cannot process rendition %s due to size %s", rendition.getName(), rendition.getDimension()));
     }
 
-    private void stream(@NotNull SlingHttpServletResponse response, @NotNull InputStream inputStream, @NotNull String contentType,
-                        String imageName)
-            throws IOException {
-        response.setContentType(contentType);
-        response.setHeader("Content-Disposition", "inline; filename=" + URLEncoder.encode(imageName, CharEncoding.UTF_8));
-        try {
-            IOUtils.copy(inputStream, response.getOutputStream());
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-        }
-    }
-
     /**
-     * Retrieves the cropping rectangle, if one is defined for the image.
+     * Streams a binary as it is, answering range requests with the requested ranges.
      *
-     * @param properties the image component's properties
-     * @return the cropping rectangle, if one is found, {@code null} otherwise
+     * @param request     the request
+     * @param response    the response
+     * @param inputStream the binary, which is closed once streamed, possibly asynchronously
+     * @param length      the binary's length, or a negative value if it is unknown
+     * @param contentType the binary's content type
+     * @param imageName   the file name of the image
+     * @param timer       the request's stage timer
+     * @throws IOException if the binary cannot be streamed
      */
-    private Rectangle getCropRect(@NotNull ValueMap properties) {
-        String csv = properties.get(ImageResource.PN_IMAGE_CROP, String.class);
-        if (StringUtils.isNotEmpty(csv)) {
-            try {
-                int ratio = csv.indexOf('/');
-                if (ratio >= 0) {
-                    // skip ratio
-                    csv = csv.substring(0, ratio);
-                }
-                String[] coords = csv.split(",");
-                int x1 = Integer.parseInt(coords[0]);
-                int y1 = Integer.parseInt(coords[1]);
-                int x2 = Integer.parseInt(coords[2]);
-                int y2 = Integer.parseInt(coords[3]);
-                return new Rectangle(x1, y1, x2 - x1, y2 - y1);
-            } catch (RuntimeException e) {
-                LOGGER.warn(String.format("Invalid cropping rectangle %s.", csv), e);
-            }
+    private void stream(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response,
+                        @NotNull InputStream inputStream, long length, @NotNull String contentType, String imageName,
+                        @NotNull StageTimer timer) throws IOException {
+        timer.commit(response);
+        response.setHeader("Content-Disposition", "inline; filename=" + URLEncoder.encode(imageName, CharEncoding.UTF_8));
+        long start = timer.start();
+        try {
+            long bytes = writeBody(request, response, ByteRangeStreamer.prepare(request, response, inputStream, length, contentType));
+            timer.count(ImagePipelineMetrics.Counter.BYTES_STREAMED, bytes);
+        } finally {
+            timer.stop(ImagePipelineMetrics.Stage.STREAM, start);
         }
-        return null;
     }
 
     /**
-     * Retrieves the rotation angle for the image, if one is present. Typically this should be a value between 0 and 360.
+     * Returns the last modified date of the asset, taking into account the original rendition, which may be replaced without the asset
+     * being touched.
      *
-     * @param properties the image component's properties
-     * @return the rotation angle
+     * @param asset the asset
+     * @return the last modified date, in milliseconds
      */
-    private int getRotation(@NotNull ValueMap properties) {
-        String rotationString = properties.get(ImageResource.PN_IMAGE_ROTATE, String.class);
-        if (rotationString != null) {
-            try {
-                return Integer.parseInt(rotationString);
-            } catch (NumberFormatException e) {
-                LOGGER.warn(String.format("Invalid rotation value %s.", rotationString), e);
+    private long getLastModified(@NotNull Asset asset) {
+        long lastModified = asset.getLastModified();
+        Rendition original = asset.getOriginal();
+        if (original != null) {
+            Calendar renditionModified = original.getProperties().get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+            if (renditionModified != null) {
+                lastModified = Math.max(lastModified, renditionModified.getTimeInMillis());
             }
         }
-        return 0;
+        return lastModified;
     }
 
     /**
@@ -506,145 +1174,143 @@ public class AdaptiveImageServlet  extends SlingSafeMethodsServlet{
         return false;
     }
 
-    private String getImageType(String ext) {
-        if (ext == null) {
-            return DEFAULT_MIME;
-        }
-        if ("tiff".equalsIgnoreCase(ext) || "tif".equalsIgnoreCase(ext)) {
-            return DEFAULT_MIME;
-        }
-        return mimeTypeService.getMimeType(ext);
-    }
-
     /**
-     * Returns the content policy bound to the given component.
+     * Computes the strong entity tag of a transformed image from its transformation key, which covers the asset, its last modified
+     * date, the component's crop, rotation and flips, the width, quality and output type, and from the asset's renditions, from which
+     * the transformed rendition is chosen.
      *
-     * @param imageResource the resource identifying the accessed image component
-     * @return the content policy. May be {@code nulll} in case no content policy can be found.
-     */
-    private ContentPolicy getContentPolicy(@NotNull Resource imageResource) {
-        ResourceResolver resourceResolver = imageResource.getResourceResolver();
-        ContentPolicyManager policyManager = resourceResolver.adaptTo(ContentPolicyManager.class);
-        if (policyManager != null) {
-            return policyManager.getPolicy(imageResource);
-        } else {
-            LOGGER.warn("Could not get policy manager from resource resolver!");
+     * @param asset             the asset
+     * @param transformationKey the key identifying the transformation
+     * @return the quoted entity tag
+     */
+    @NotNull
+    private String getETag(@NotNull Asset asset, @NotNull String transformationKey) {
+        StringBuilder fingerprint = new StringBuilder(transformationKey);
+        for (RenditionInfo rendition : renditionMetadataIndex.getRenditions(asset)) {
+            fingerprint.append('|').append(rendition.getName()).append(':').append(rendition.getSize()).append(':')
+                    .append(rendition.getWidth());
         }
-        return null;
+        return '"' + Hashing.sha256().hashString(fingerprint, StandardCharsets.UTF_8).toString().substring(0, ETAG_LENGTH) + '"';
     }
 
     /**
-     * Creates a {@link List} from the given selector string. A valid selector can be:
-     *      * handler or
-     *      * handler.width or
-     *      * handler.quality.width
+     * Sets the {@code ETag} and, if configured, the {@code Cache-Control} headers of the response.
      *
-     * @param selector string to create the List from
-     * @return {@link List} of selector items
-     * @throws IllegalArgumentException in case the selector is not valid
+     * @param response the response
+     * @param eTag     the entity tag
      */
-    private List<String> selectorToList(String selector) throws IllegalArgumentException {
-        if (StringUtils.isEmpty(selector)) {
-            throw new IllegalArgumentException("Expected 1, 2 or 3 selectors instead got empty selector");
+    private void setCacheHeaders(@NotNull SlingHttpServletResponse response, @NotNull String eTag) {
+        response.setHeader(HEADER_ETAG, eTag);
+        StringBuilder cacheControl = new StringBuilder();
+        if (maxAge >= 0) {
+            cacheControl.append("max-age=").append(maxAge);
+        }
+        if (sharedMaxAge >= 0) {
+            cacheControl.append(cacheControl.length() > 0 ? ", " : "").append("s-maxage=").append(sharedMaxAge);
         }
-        ArrayList<String> selectorList = Lists.newArrayList(Splitter.on('.').omitEmptyStrings().trimResults().split(selector));
-        if (selectorList.size() > 3) {
-            throw new IllegalArgumentException("Expected 1, 2 or 3 selectors, instead got: " + selectorList.size());
+        if (cacheControl.length() > 0) {
+            response.setHeader(HEADER_CACHE_CONTROL, cacheControl.toString());
         }
-        return selectorList;
     }
 
     /**
-     * Creates an image transformation map from the given selector items.
+     * Checks if the {@code request} contains the {@code If-None-Match} header and whether it matches the passed {@code eTag}, in which
+     * case {@link HttpServletResponse#SC_NOT_MODIFIED} will be set as the {@code response} status code. Entity tags are compared weakly,
+     * as required for {@code If-None-Match}.
      *
-     * @param selectorList to get the parameter from
-     * @return {@link Map} with quality and width transformation parameter
+     * @param request  the request
+     * @param response the response
+     * @param eTag     the current entity tag of the image
+     * @return {@code true} if the {@code response}'s status code was set (to {@link HttpServletResponse#SC_NOT_MODIFIED}, {@code false}
+     * otherwise
      */
-    private Map<String, Integer> getTransformationMap(List<String> selectorList, Resource component) throws IllegalArgumentException {
-        Map<String, Integer> selectorParameterMap = new HashMap<>();
-        int width = this.defaultResizeWidth;
-        if (selectorList.size() > 1) {
-            String widthString = (selectorList.size() > 2 ? selectorList.get(2) : selectorList.get(1));
-            try {
-                width = Integer.parseInt(widthString);
-                if (width <= 0) {
-                    throw new IllegalArgumentException();
-                }
-                List<Integer> allowedRenditionWidths = getAllowedRenditionWidths(component);
-                if (!allowedRenditionWidths.contains(width)) {
-                    throw new IllegalArgumentException("The requested width is not allowed in the content policy or no default");
-                }
-            } catch (IllegalArgumentException e) {
-                throw new IllegalArgumentException("Third selector must contain a valid width information (selector > 0)");
+    private boolean handleIfNoneMatchHeader(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response,
+                                            @NotNull String eTag) {
+        String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+        if (StringUtils.isEmpty(ifNoneMatch)) {
+            return false;
+        }
+        for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+            String tag = StringUtils.removeStart(candidate.trim(), "W/");
+            if ("*".equals(tag) || eTag.equals(tag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                LOGGER.debug("If-None-Match header matched the current entity tag {}; replying with a 304 status code.", eTag);
+                return true;
             }
         }
-        selectorParameterMap.put(SELECTOR_WIDTH_KEY, width);
+        return false;
+    }
 
-        int quality = DEFAULT_JPEG_QUALITY;
-        if (selectorList.size() > 2) {
-            String qualityString = selectorList.get(1);
-            try {
-                int qualityPercentage = Integer.parseInt(qualityString);
-                if (qualityPercentage <= 0 || qualityPercentage > 100) {
-                    throw new IllegalArgumentException();
-                }
-                Integer allowedJpegQuality = getAllowedJpegQuality(component);
-                if (qualityPercentage != allowedJpegQuality) {
-                    throw new IllegalArgumentException("The requested quality is not allowed in the content policy or no default");
-                }
-                quality = qualityPercentage;
-            } catch (IllegalArgumentException e) {
-                throw new IllegalArgumentException("Second selector must be a valid quality in percentage (100 <= selector > 0)");
-            }
+    private String getImageType(String ext) {
+        if (ext == null) {
+            return DEFAULT_MIME;
+        }
+        if ("tiff".equalsIgnoreCase(ext) || "tif".equalsIgnoreCase(ext)) {
+            return DEFAULT_MIME;
         }
-        selectorParameterMap.put(SELECTOR_QUALITY_KEY, quality);
-        return selectorParameterMap;
+        if ("webp".equalsIgnoreCase(ext) || "avif".equalsIgnoreCase(ext)) {
+            // explicitly requested modern formats are only delivered if this instance can encode them
+            String mimeType = "webp".equalsIgnoreCase(ext) ? ImageFormatNegotiator.MIME_WEBP : ImageFormatNegotiator.MIME_AVIF;
+            return ImageFormatNegotiator.canEncode(mimeType) ? mimeType : DEFAULT_MIME;
+        }
+        return mimeTypeService.getMimeType(ext);
     }
 
     /**
-     * Returns the list of allowed renditions sizes from this component's content policy. If the component doesn't have a content policy,
-     * then the list will only contain the default resize width. Rendition widths that are not valid {@link Integer} numbers will be
-     * ignored.
+     * Returns the resampling filter with the given name.
      *
-     * @param imageResource the resource identifying the accessed image component
-     * @return the list of the allowed widths; the list will be <i>empty</i> if the component doesn't have a content policy
-     */
-    private List<Integer> getAllowedRenditionWidths(@NotNull Resource imageResource) {
-        List<Integer> list = new ArrayList<>();
-        ContentPolicy contentPolicy = getContentPolicy(imageResource);
-        if (contentPolicy != null) {
-            String[] allowedRenditionWidths = contentPolicy.getProperties()
-                    .get(com.adobe.cq.wcm.core.components.models.Image.PN_DESIGN_ALLOWED_RENDITION_WIDTHS, new String[0]);
-            for (String width : allowedRenditionWidths) {
-                try {
-                    list.add(Integer.parseInt(width));
-                } catch (NumberFormatException e) {
-                    LOGGER.warn("One of the configured widths ({}) from the {} content policy is not a valid Integer.", width,
-                            contentPolicy.getPath());
-                    return list;
-                }
-            }
-        }
-        if (list.isEmpty()) {
-            list.add(this.defaultResizeWidth);
+     * @param name the filter's name
+     * @return the filter, {@link ParallelResampler.Filter#LANCZOS3} if the name is not valid
+     */
+    private ParallelResampler.Filter getResamplingFilter(String name) {
+        try {
+            return ParallelResampler.Filter.valueOf(StringUtils.upperCase(name));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            LOGGER.warn("Invalid resampling filter {}; using {}.", name, ParallelResampler.Filter.LANCZOS3);
+            return ParallelResampler.Filter.LANCZOS3;
         }
-        return list;
     }
 
     /**
-     * Returns the allowed JPEG quality from this component's content policy.
+     * Resolves the transformation requested by the selectors, validating the requested width and quality against the component's
+     * content policy, and combines it with the crop, rotation and flips configured on the component.
      *
-     * @param imageResource the resource identifying the accessed image component
-     * @return the JPEG quality in the range 0..100 or {@link #DEFAULT_JPEG_QUALITY} if the component doesn't have a content policy or doesn't have this policy property set to an Integer.
+     * @param selectors           the transformation parsed from the request's selectors
+     * @param component           the image component
+     * @param componentProperties the image component's properties
+     * @param imageType           the output mime type
+     * @return the interned transformation spec
+     * @throws IllegalArgumentException if the requested width or quality is not allowed
      */
-    private Integer getAllowedJpegQuality(@NotNull Resource imageResource) {
-        Integer allowedJpegQuality = DEFAULT_JPEG_QUALITY;
-        ContentPolicy contentPolicy = getContentPolicy(imageResource);
-        if (contentPolicy != null) {
-            allowedJpegQuality = contentPolicy.getProperties()
-                    .get(com.adobe.cq.wcm.core.components.models.Image.PN_DESIGN_JPEG_QUALITY, DEFAULT_JPEG_QUALITY);
+    @NotNull
+    private TransformationSpec getTransformationSpec(@NotNull TransformationSpec selectors, @NotNull Resource component,
+                                                     @NotNull ValueMap componentProperties, @NotNull String imageType)
+            throws IllegalArgumentException {
+        int width = this.defaultResizeWidth;
+        int quality = DEFAULT_JPEG_QUALITY;
+        if (selectors.getWidth() > 0) {
+            ContentPolicyCache.AllowedPolicy policy = contentPolicyCache.getPolicy(component);
+            width = selectors.getWidth();
+            // without allowed widths in the policy only the default resize width is allowed
+            if (policy.hasNoWidths() ? width != this.defaultResizeWidth : !policy.isAllowedWidth(width)) {
+                throw new IllegalArgumentException("Third selector must contain a valid width information (selector > 0)");
+            }
+            if (selectors.getQuality() > 0) {
+                quality = selectors.getQuality();
+                if (quality != policy.getQuality()) {
+                    throw new IllegalArgumentException("Second selector must be a valid quality in percentage (100 <= selector > 0)");
+                }
+            }
         }
-        return allowedJpegQuality;
+        return TransformationSpec.of(componentProperties, width, quality, imageType);
+    }
+
+    /**
+     * Writes an image's encoded bytes.
+     */
+    @FunctionalInterface
+    private interface Encoder {
+        void encode(@NotNull OutputStream output) throws IOException;
     }
 
     private enum Source {
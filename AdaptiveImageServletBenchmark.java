@@ -0,0 +1,167 @@
+package com.mysite.core.servlets;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.adobe.cq.wcm.core.components.models.Image;
+import com.day.cq.commons.ImageResource;
+import com.day.cq.dam.api.Asset;
+
+/**
+ * JMH benchmark of the {@link AdaptiveImageServlet}'s {@code GET} requests, for each scenario of the matrix below and fixtures from
+ * 640px to 3840px wide, against the in-memory repository of {@link BenchmarkStandIns}:
+ * <ul>
+ * <li>{@link Scenario#PASS_THROUGH}: a width at or above the best rendition's width, so a rendition is streamed as-is;</li>
+ * <li>{@link Scenario#RESIZE}: {@code coreimg.82.1280.jpg};</li>
+ * <li>{@link Scenario#CROP_RESIZE}: {@code coreimg.82.640.jpg} of a component with an {@code imageCrop};</li>
+ * <li>{@link Scenario#ROTATE_FLIP}: {@code coreimg.82.1280.jpg} of a component with {@code imageRotate=90} and
+ * {@code imageFlipHorizontal};</li>
+ * <li>{@link Scenario#TRANSPARENT_PNG_TO_JPEG}: {@code coreimg.82.1280.jpg} of a PNG original with alpha.</li>
+ * </ul>
+ * The derivative cache and request coalescing are disabled, so that every invocation runs the full transformation. Run with
+ * {@code -bm thrpt} for throughput, {@code -bm sample -tu ms} for the latency percentiles and {@code -prof gc} for the allocation rate;
+ * {@code -p pixelBufferPoolMb=256,0} compares the allocations with and without the pixel buffer pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class AdaptiveImageServletBenchmark {
+
+    private static final String COMPONENT_PATH = "/content/mysite/en/jcr:content/root/image";
+    private static final String[] ALLOWED_WIDTHS = { "640", "1280", "1920", "3840" };
+    private static final int QUALITY = 82;
+
+    /**
+     * The scenarios of the matrix.
+     */
+    public enum Scenario {
+        PASS_THROUGH,
+        RESIZE,
+        CROP_RESIZE,
+        ROTATE_FLIP,
+        TRANSPARENT_PNG_TO_JPEG
+    }
+
+    @Param({ "PASS_THROUGH", "RESIZE", "CROP_RESIZE", "ROTATE_FLIP", "TRANSPARENT_PNG_TO_JPEG" })
+    public Scenario scenario;
+
+    @Param({ "640", "1280", "1920", "3840" })
+    public int sourceWidth;
+
+    /**
+     * The size of the pixel buffer pool, {@code 0} to allocate the rasters of every request, to compare the allocation rates with
+     * {@code -prof gc}.
+     */
+    @Param({ "256" })
+    public long pixelBufferPoolMb;
+
+    private AdaptiveImageServlet servlet;
+    private SlingHttpServletRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        boolean png = scenario == Scenario.TRANSPARENT_PNG_TO_JPEG;
+        BufferedImage original = BenchmarkStandIns.fixture(sourceWidth, png);
+        String assetPath = "/content/dam/benchmark/fixture-" + sourceWidth + (png ? ".png" : ".jpg");
+        Asset asset = BenchmarkStandIns.asset(assetPath, original, png ? BenchmarkStandIns.MIME_PNG : BenchmarkStandIns.MIME_JPEG);
+        ResourceResolver resolver = BenchmarkStandIns.resolver(asset, ALLOWED_WIDTHS, QUALITY);
+
+        Map<String, Object> properties = new HashMap<>();
+        int width = 1280;
+        switch (scenario) {
+            case PASS_THROUGH:
+                width = 3840;
+                break;
+            case CROP_RESIZE:
+                // the crop is relative to the web rendition, at most 1280px wide
+                int webWidth = Math.min(1280, sourceWidth);
+                int webHeight = webWidth * 9 / 16;
+                properties.put(ImageResource.PN_IMAGE_CROP, webWidth / 10 + "," + webHeight / 10 + "," + webWidth * 7 / 10 + "," +
+                        webHeight * 7 / 10);
+                width = 640;
+                break;
+            case ROTATE_FLIP:
+                properties.put(ImageResource.PN_IMAGE_ROTATE, "90");
+                properties.put(Image.PN_FLIP_HORIZONTAL, Boolean.TRUE);
+                break;
+            default:
+                break;
+        }
+        request = BenchmarkStandIns.request(BenchmarkStandIns.component(resolver, COMPONENT_PATH, properties),
+                "coreimg." + QUALITY + '.' + width, "jpg", assetPath);
+
+        servlet = new AdaptiveImageServlet();
+        ImagePipelineMetrics pipelineMetrics = new ImagePipelineMetrics();
+        pipelineMetrics.activate(BenchmarkStandIns.config(ImagePipelineMetrics.Config.class, new HashMap<>()));
+        RenditionMetadataIndex renditionMetadataIndex = new RenditionMetadataIndex();
+        BenchmarkStandIns.inject(renditionMetadataIndex, "pipelineMetrics", pipelineMetrics);
+        renditionMetadataIndex.activate(BenchmarkStandIns.config(RenditionMetadataIndex.Config.class, new HashMap<>()));
+        ContentPolicyCache contentPolicyCache = new ContentPolicyCache();
+        contentPolicyCache.activate(BenchmarkStandIns.config(ContentPolicyCache.Config.class, new HashMap<>()));
+        CostBasedRenditionSelector renditionSelector = new CostBasedRenditionSelector();
+        renditionSelector.activate(BenchmarkStandIns.config(CostBasedRenditionSelector.Config.class, new HashMap<>()));
+
+        BenchmarkStandIns.inject(servlet, "mimeTypeService", BenchmarkStandIns.mimeTypeService());
+        BenchmarkStandIns.inject(servlet, "assetStore", BenchmarkStandIns.assetStore());
+        BenchmarkStandIns.inject(servlet, "renditionMetadataIndex", renditionMetadataIndex);
+        BenchmarkStandIns.inject(servlet, "pipelineMetrics", pipelineMetrics);
+        BenchmarkStandIns.inject(servlet, "contentPolicyCache", contentPolicyCache);
+        BenchmarkStandIns.inject(servlet, "renditionSelector", renditionSelector);
+        servlet.activate(BenchmarkStandIns.config(AdaptiveImageServlet.Config.class, getConfiguration()), null);
+
+        // fail the trial rather than measure an error page
+        BenchmarkStandIns.DiscardingResponse response = new BenchmarkStandIns.DiscardingResponse();
+        servlet.doGet(request, response.get());
+        if (response.getStatus() != SlingHttpServletResponse.SC_OK || response.getBytesWritten() == 0) {
+            throw new IllegalStateException("The " + scenario + " request of the " + sourceWidth + "px fixture returned status " +
+                    response.getStatus() + " with " + response.getBytesWritten() + " bytes");
+        }
+    }
+
+    /**
+     * @return the servlet's configuration, by attribute
+     */
+    private Map<String, Object> getConfiguration() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("derivative_cache_enabled", Boolean.FALSE);
+        config.put("coalescing_enabled", Boolean.FALSE);
+        config.put("pixel_buffer_pool_mb", pixelBufferPoolMb);
+        return config;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        servlet.deactivate();
+    }
+
+    /**
+     * @return the number of bytes of the response's body, so that it's consumed
+     */
+    @Benchmark
+    public long get() throws IOException {
+        BenchmarkStandIns.DiscardingResponse response = new BenchmarkStandIns.DiscardingResponse();
+        servlet.doGet(request, response.get());
+        return response.getBytesWritten();
+    }
+}
@@ -0,0 +1,430 @@
+package com.mysite.core.servlets;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+/**
+ * Downscales (animated) GIF images frame by frame. Each frame is decoded, composited onto a canvas of the image's logical screen as
+ * its disposal method requires, resampled to the output's size, mapped onto a palette shared by all frames and written to the output
+ * before the next frame is decoded, so that only the canvas and a couple of frame rasters are held in memory, however long the
+ * animation is.
+ */
+final class AnimatedGifResizer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AnimatedGifResizer.class);
+
+    static final String MIME_GIF = "image/gif";
+
+    private static final String STREAM_METADATA_FORMAT = "javax_imageio_gif_stream_1.0";
+    private static final String IMAGE_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final String DISPOSAL_NONE = "none";
+    private static final String DISPOSAL_RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+    private static final String DISPOSAL_RESTORE_TO_PREVIOUS = "restoreToPrevious";
+    private static final int MAX_COLORS = 256;
+    private static final int CUBE_LEVELS = 6;
+    private static final int MIN_CUBE_LEVELS = 4;
+
+    private final InputStream source;
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final Dimension screen;
+    private final Dimension output;
+    private final IndexColorModel palette;
+    private final int loops;
+
+    private AnimatedGifResizer(InputStream source, ImageInputStream input, ImageReader reader, Dimension screen, Dimension output,
+                               IndexColorModel palette, int loops) {
+        this.source = source;
+        this.input = input;
+        this.reader = reader;
+        this.screen = screen;
+        this.output = output;
+        this.palette = palette;
+        this.loops = loops;
+    }
+
+    /**
+     * Reads a GIF's header and global palette.
+     *
+     * @param source the GIF, which is closed with the resizer, or right away if {@code null} is returned
+     * @param width  the requested width
+     * @return the resizer, or {@code null} if the GIF cannot be read or is not wider than the requested width
+     */
+    @Nullable
+    static AnimatedGifResizer open(@NotNull InputStream source, int width) {
+        ImageInputStream input = null;
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(MIME_GIF);
+            if (!readers.hasNext() || width <= 0) {
+                IOUtils.closeQuietly(source);
+                return null;
+            }
+            reader = readers.next();
+            input = new MemoryCacheImageInputStream(source);
+            reader.setInput(input, true, false);
+            IIOMetadataNode streamMetadata = (IIOMetadataNode) reader.getStreamMetadata().getAsTree(STREAM_METADATA_FORMAT);
+            IIOMetadataNode screenDescriptor = getChild(streamMetadata, "LogicalScreenDescriptor");
+            Dimension screen = new Dimension(getInt(screenDescriptor, "logicalScreenWidth", 0),
+                    getInt(screenDescriptor, "logicalScreenHeight", 0));
+            if (screen.width <= width || screen.height <= 0) {
+                LOG.debug("GIF of {}x{}px doesn't need to be downscaled to {}px.", screen.width, screen.height, width);
+                closeQuietly(reader, input, source);
+                return null;
+            }
+            Dimension output = FusedTransform.getOutputSize(screen.width, screen.height, 0, width);
+            IndexColorModel palette = createPalette(getChild(streamMetadata, "GlobalColorTable"), getFirstLocalColorTable(reader));
+            return new AnimatedGifResizer(source, input, reader, screen, output, palette, getLoops(reader));
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Cannot read the GIF's header; the GIF will be streamed as it is.", e);
+            closeQuietly(reader, input, source);
+            return null;
+        }
+    }
+
+    /**
+     * @return the size of the downscaled GIF
+     */
+    @NotNull
+    Dimension getOutputSize() {
+        return output;
+    }
+
+    /**
+     * @return the size of the GIF's canvas
+     */
+    @NotNull
+    Dimension getScreenSize() {
+        return screen;
+    }
+
+    /**
+     * Downscales all frames of the GIF into the output.
+     *
+     * @param target    the output stream
+     * @param resampler the resampler the frames are downscaled with
+     * @param lease     the lease the frame rasters' buffers are taken from
+     * @throws IOException if the GIF cannot be decoded or the output cannot be written
+     */
+    void resize(@NotNull OutputStream target, @NotNull ParallelResampler resampler, @NotNull TransformationBudget.Lease lease)
+            throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(MIME_GIF);
+        if (!writers.hasNext()) {
+            throw new IOException("No GIF encoder is installed");
+        }
+        ImageWriter writer = writers.next();
+        BufferedImage canvas = lease.createImage(screen.width, screen.height, true);
+        int[] canvasPixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        Arrays.fill(canvasPixels, 0, screen.width * screen.height, 0);
+        BufferedImage indexed = new BufferedImage(output.width, output.height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        InverseColorMap colorMap = new InverseColorMap(palette);
+        ImageTypeSpecifier type = new ImageTypeSpecifier(indexed);
+        int[] saved = null;
+        int frames = 0;
+        long flushable = 0;
+        try (ImageOutputStream imageOutput = new MemoryCacheImageOutputStream(target)) {
+            writer.setOutput(imageOutput);
+            writer.prepareWriteSequence(null);
+            for (int index = 0; ; index++) {
+                long position = input.getStreamPosition();
+                IIOImage frame;
+                try {
+                    frame = reader.readAll(index, null);
+                } catch (IndexOutOfBoundsException e) {
+                    break;
+                }
+                IIOMetadataNode metadata = (IIOMetadataNode) frame.getMetadata().getAsTree(IMAGE_METADATA_FORMAT);
+                IIOMetadataNode descriptor = getChild(metadata, "ImageDescriptor");
+                IIOMetadataNode control = getChild(metadata, "GraphicControlExtension");
+                int x = getInt(descriptor, "imageLeftPosition", 0);
+                int y = getInt(descriptor, "imageTopPosition", 0);
+                BufferedImage image = (BufferedImage) frame.getRenderedImage();
+                String disposal = control != null ? control.getAttribute("disposalMethod") : DISPOSAL_NONE;
+                if (DISPOSAL_RESTORE_TO_PREVIOUS.equals(disposal)) {
+                    if (saved == null) {
+                        saved = lease.acquire(screen.width * screen.height);
+                    }
+                    System.arraycopy(canvasPixels, 0, saved, 0, screen.width * screen.height);
+                }
+                Graphics2D graphics = canvas.createGraphics();
+                try {
+                    graphics.setComposite(AlphaComposite.SrcOver);
+                    graphics.drawImage(image, x, y, null);
+                } finally {
+                    graphics.dispose();
+                }
+
+                BufferedImage scaled = resampler.resample(canvas, output.width, output.height, false, lease);
+                colorMap.map(scaled, indexed.getRaster());
+                lease.release(scaled);
+                writer.writeToSequence(new IIOImage(indexed, null, createFrameMetadata(writer, type, control, index == 0)), null);
+                // hand the encoded frame over to the output instead of caching the whole animation
+                imageOutput.flush();
+                frames++;
+
+                // prepare the canvas for the next frame
+                if (DISPOSAL_RESTORE_TO_BACKGROUND.equals(disposal)) {
+                    graphics = canvas.createGraphics();
+                    try {
+                        graphics.setComposite(AlphaComposite.Clear);
+                        graphics.fillRect(x, y, image.getWidth(), image.getHeight());
+                    } finally {
+                        graphics.dispose();
+                    }
+                } else if (DISPOSAL_RESTORE_TO_PREVIOUS.equals(disposal)) {
+                    System.arraycopy(saved, 0, canvasPixels, 0, screen.width * screen.height);
+                }
+                // the reader seeks back to the start of the frame it has just read, to skip it, but never further: the bytes before the
+                // position the previous frame was read from can be dropped
+                input.flushBefore(flushable);
+                flushable = position;
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        LOG.debug("Downscaled a GIF of {} frames from {}x{}px to {}x{}px.", frames, screen.width, screen.height, output.width,
+                output.height);
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(reader, input, source);
+    }
+
+    /**
+     * Builds the metadata of an output frame. Every output frame covers the whole canvas and is disposed to the (transparent)
+     * background, so that the transparent pixels of a frame don't reveal the previous one.
+     */
+    private IIOMetadata createFrameMetadata(ImageWriter writer, ImageTypeSpecifier type, @Nullable IIOMetadataNode sourceControl,
+                                            boolean first) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(type, null);
+        IIOMetadataNode root = new IIOMetadataNode(IMAGE_METADATA_FORMAT);
+        IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", DISPOSAL_RESTORE_TO_BACKGROUND);
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "TRUE");
+        control.setAttribute("delayTime", sourceControl != null ? sourceControl.getAttribute("delayTime") : "0");
+        control.setAttribute("transparentColorIndex", String.valueOf(palette.getTransparentPixel()));
+        root.appendChild(control);
+        if (first && loops >= 0) {
+            IIOMetadataNode applicationExtensions = new IIOMetadataNode("ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] { 1, (byte) (loops & 0xff), (byte) ((loops >> 8) & 0xff) });
+            applicationExtensions.appendChild(loop);
+            root.appendChild(applicationExtensions);
+        }
+        metadata.mergeTree(IMAGE_METADATA_FORMAT, root);
+        return metadata;
+    }
+
+    /**
+     * Builds the palette shared by all output frames from the source's global color table and its first frame's local one, completed
+     * with a uniform color cube, so that the colors of later frames with their own local color tables are approximated. The cube has 6
+     * levels per channel if the source's colors leave room for it, 4 otherwise, in which case the source's last colors are dropped and
+     * mapped onto their nearest entries. The last entry is reserved for transparency.
+     */
+    private static IndexColorModel createPalette(@Nullable IIOMetadataNode globalColorTable, @Nullable IIOMetadataNode localColorTable)
+            throws IOException {
+        Set<Integer> sourceColors = new LinkedHashSet<>();
+        addColors(globalColorTable, sourceColors);
+        addColors(localColorTable, sourceColors);
+        if (sourceColors.isEmpty()) {
+            throw new IOException("The GIF has no color table");
+        }
+        int levels = sourceColors.size() <= MAX_COLORS - 1 - CUBE_LEVELS * CUBE_LEVELS * CUBE_LEVELS ? CUBE_LEVELS : MIN_CUBE_LEVELS;
+        int maxSourceColors = MAX_COLORS - 1 - levels * levels * levels;
+        Set<Integer> colors = new LinkedHashSet<>();
+        for (int color : sourceColors) {
+            if (colors.size() == maxSourceColors) {
+                break;
+            }
+            colors.add(color);
+        }
+        int step = 0xff / (levels - 1);
+        for (int r = 0; r < levels; r++) {
+            for (int g = 0; g < levels; g++) {
+                for (int b = 0; b < levels; b++) {
+                    colors.add(r * step << 16 | g * step << 8 | b * step);
+                }
+            }
+        }
+        int size = Math.min(colors.size(), MAX_COLORS - 1);
+        byte[] red = new byte[size + 1];
+        byte[] green = new byte[size + 1];
+        byte[] blue = new byte[size + 1];
+        int index = 0;
+        for (int color : colors) {
+            if (index == size) {
+                break;
+            }
+            red[index] = (byte) (color >> 16);
+            green[index] = (byte) (color >> 8);
+            blue[index] = (byte) color;
+            index++;
+        }
+        // the GIF encoder only writes palettes of 2, 4, ..., 256 entries
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(size));
+        return new IndexColorModel(bits, size + 1, red, green, blue, size);
+    }
+
+    private static void addColors(@Nullable IIOMetadataNode colorTable, Set<Integer> colors) {
+        if (colorTable == null) {
+            return;
+        }
+        for (Node node = colorTable.getFirstChild(); node != null; node = node.getNextSibling()) {
+            IIOMetadataNode entry = (IIOMetadataNode) node;
+            colors.add(getInt(entry, "red", 0) << 16 | getInt(entry, "green", 0) << 8 | getInt(entry, "blue", 0));
+        }
+    }
+
+    @Nullable
+    private static IIOMetadataNode getFirstLocalColorTable(ImageReader reader) throws IOException {
+        IIOMetadataNode metadata = (IIOMetadataNode) reader.getImageMetadata(0).getAsTree(IMAGE_METADATA_FORMAT);
+        return getChild(metadata, "LocalColorTable");
+    }
+
+    /**
+     * @return the number of times the animation is repeated, {@code 0} for ever, or {@code -1} if it is played once
+     */
+    private static int getLoops(ImageReader reader) throws IOException {
+        IIOMetadataNode metadata = (IIOMetadataNode) reader.getImageMetadata(0).getAsTree(IMAGE_METADATA_FORMAT);
+        IIOMetadataNode extensions = getChild(metadata, "ApplicationExtensions");
+        if (extensions != null) {
+            for (Node node = extensions.getFirstChild(); node != null; node = node.getNextSibling()) {
+                IIOMetadataNode extension = (IIOMetadataNode) node;
+                if ("NETSCAPE".equals(extension.getAttribute("applicationID")) && extension.getUserObject() instanceof byte[]) {
+                    byte[] data = (byte[]) extension.getUserObject();
+                    if (data.length >= 3 && data[0] == 1) {
+                        return (data[1] & 0xff) | (data[2] & 0xff) << 8;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    private static IIOMetadataNode getChild(@Nullable IIOMetadataNode parent, String name) {
+        if (parent == null) {
+            return null;
+        }
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (name.equals(node.getNodeName())) {
+                return (IIOMetadataNode) node;
+            }
+        }
+        return null;
+    }
+
+    private static int getInt(@Nullable IIOMetadataNode node, String attribute, int defaultValue) {
+        if (node == null || !node.hasAttribute(attribute)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(node.getAttribute(attribute));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void closeQuietly(@Nullable ImageReader reader, @Nullable ImageInputStream input, InputStream source) {
+        if (reader != null) {
+            reader.dispose();
+        }
+        IOUtils.closeQuietly(input);
+        IOUtils.closeQuietly(source);
+    }
+
+    /**
+     * Maps ARGB pixels to the nearest palette entry, caching the lookups by 15-bit color.
+     */
+    private static final class InverseColorMap {
+
+        private final int[] colors;
+        private final int transparent;
+        private final short[] cache = new short[1 << 15];
+
+        InverseColorMap(IndexColorModel palette) {
+            this.transparent = palette.getTransparentPixel();
+            this.colors = new int[palette.getMapSize()];
+            palette.getRGBs(colors);
+            Arrays.fill(cache, (short) -1);
+        }
+
+        void map(BufferedImage image, WritableRaster target) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            byte[] indices = ((DataBufferByte) target.getDataBuffer()).getData();
+            for (int i = 0, n = width * height; i < n; i++) {
+                int pixel = pixels[i];
+                indices[i] = (byte) ((pixel >>> 24) < 0x80 ? transparent : lookup(pixel));
+            }
+        }
+
+        private int lookup(int pixel) {
+            int key = (pixel >> 9) & 0x7c00 | (pixel >> 6) & 0x3e0 | (pixel >> 3) & 0x1f;
+            int index = cache[key];
+            if (index < 0) {
+                index = nearest(pixel);
+                cache[key] = (short) index;
+            }
+            return index;
+        }
+
+        private int nearest(int pixel) {
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < colors.length; i++) {
+                if (i == transparent) {
+                    continue;
+                }
+                int dr = r - ((colors[i] >> 16) & 0xff);
+                int dg = g - ((colors[i] >> 8) & 0xff);
+                int db = b - (colors[i] & 0xff);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return best;
+        }
+    }
+}
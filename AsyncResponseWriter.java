@@ -0,0 +1,124 @@
+package com.mysite.core.servlets;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a response's body with non-blocking I/O: the request is put in asynchronous mode and the body is written chunk by chunk from
+ * the container's {@link WriteListener} callbacks, whenever the client's socket can take more bytes, so that the request thread is
+ * released as soon as the body is ready instead of waiting for slow clients. The body is read on the container's threads after the
+ * request has been processed, so it must be held in memory or in a local file, see {@link ByteRangeStreamer.Body#isDetached()}.
+ */
+final class AsyncResponseWriter implements WriteListener, AsyncListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncResponseWriter.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final AsyncContext context;
+    private final ServletOutputStream output;
+    private final ByteRangeStreamer.Body body;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private AsyncResponseWriter(AsyncContext context, ServletOutputStream output, ByteRangeStreamer.Body body) {
+        this.context = context;
+        this.output = output;
+        this.body = body;
+    }
+
+    /**
+     * Checks whether a request's response can be written asynchronously. {@code HEAD} requests are excluded, as their responses discard
+     * the body.
+     *
+     * @param request the request
+     * @return {@code true} if the container supports asynchronous processing of the request
+     */
+    static boolean isSupported(@NotNull HttpServletRequest request) {
+        return "GET".equals(request.getMethod()) && request.isAsyncSupported() && !request.isAsyncStarted();
+    }
+
+    /**
+     * Starts the asynchronous writing of the body. The status and headers must already be set; the body is closed once written, or
+     * once writing fails or times out.
+     *
+     * @param request  the request, which must be {@link #isSupported(HttpServletRequest) supported}
+     * @param response the response
+     * @param body     the body, which must be {@link ByteRangeStreamer.Body#isDetached() detached} from the request
+     * @param timeout  the time, in milliseconds, after which writing the body is abandoned
+     * @throws IOException if the response's output stream cannot be obtained
+     */
+    static void write(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull ByteRangeStreamer.Body body,
+                      long timeout) throws IOException {
+        AsyncContext context = request.startAsync();
+        context.setTimeout(timeout);
+        AsyncResponseWriter writer;
+        try {
+            writer = new AsyncResponseWriter(context, response.getOutputStream(), body);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(body);
+            context.complete();
+            throw e;
+        }
+        context.addListener(writer);
+        // the container calls onWritePossible right away, on one of its threads, if the stream is already writable
+        writer.output.setWriteListener(writer);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (output.isReady()) {
+            int read = body.read(buffer);
+            if (read < 0) {
+                finish();
+                return;
+            }
+            output.write(buffer, 0, read);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        LOG.debug("Asynchronous write of an image response failed.", throwable);
+        finish();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        LOG.debug("Asynchronous write of an image response timed out.");
+        finish();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        IOUtils.closeQuietly(body);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // not restarted
+    }
+
+    private void finish() {
+        if (finished.compareAndSet(false, true)) {
+            IOUtils.closeQuietly(body);
+            context.complete();
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.mysite.core.servlets;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.mime.MimeTypeService;
+import org.jetbrains.annotations.NotNull;
+import com.adobe.cq.wcm.core.components.models.Image;
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.DamConstants;
+import com.day.cq.dam.api.Rendition;
+import com.day.cq.dam.api.RenditionPicker;
+import com.day.cq.dam.api.handler.AssetHandler;
+import com.day.cq.dam.api.handler.store.AssetStore;
+import com.day.cq.wcm.api.policies.ContentPolicy;
+import com.day.cq.wcm.api.policies.ContentPolicyManager;
+
+/**
+ * In-memory stand-ins for the repository, the request and the services the {@link AdaptiveImageServlet} depends on, used by
+ * {@link AdaptiveImageServletBenchmark} so that it measures the servlet's own work. An asset holds encoded fixture bytes for its
+ * original, web and thumbnail renditions, and the response counts the bytes it's written and discards them. Methods the servlet doesn't
+ * call return {@code null}, {@code false} or zero.
+ */
+final class BenchmarkStandIns {
+
+    static final String COMPONENT_RESOURCE_TYPE = "mysite/components/image";
+    static final String WEB_RENDITION = "cq5dam.web.1280.1280.jpeg";
+    static final String THUMBNAIL_RENDITION = "cq5dam.thumbnail.319.319.png";
+    static final String MIME_JPEG = "image/jpeg";
+    static final String MIME_PNG = "image/png";
+
+    private static final long LAST_MODIFIED = 1577836800000L;
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private BenchmarkStandIns() {
+    }
+
+    /**
+     * Generates a 16:9 fixture: colour gradients overlaid with noise, so that it compresses like a photograph rather than a flat
+     * graphic, and the same on every run.
+     *
+     * @param width the fixture's width
+     * @param alpha {@code true} to add an alpha ramp, for the transparent PNG fixtures
+     * @return the fixture
+     */
+    @NotNull
+    static BufferedImage fixture(int width, boolean alpha) {
+        int height = width * 9 / 16;
+        BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Random noise = new Random(width);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = alpha ? x * 255 / width : 0xff;
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = (r + g) / 2 + noise.nextInt(64) - 32;
+                row[x] = a << 24 | r << 16 | g << 8 | Math.max(0, Math.min(255, b));
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Creates an asset with the original, web and thumbnail renditions the DAM update asset workflow generates for the given original.
+     *
+     * @param path     the asset's path
+     * @param original the original image
+     * @param mimeType the original's mime type, {@value #MIME_JPEG} or {@value #MIME_PNG}
+     * @return the asset
+     * @throws IOException if the renditions cannot be encoded
+     */
+    @NotNull
+    static Asset asset(@NotNull String path, @NotNull BufferedImage original, @NotNull String mimeType) throws IOException {
+        List<Rendition> renditions = new ArrayList<>();
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(DamConstants.TIFF_IMAGEWIDTH, String.valueOf(original.getWidth()));
+        metadata.put(DamConstants.TIFF_IMAGELENGTH, String.valueOf(original.getHeight()));
+        Asset asset = stub(Asset.class)
+                .on("getPath", args -> path)
+                .on("getName", args -> path.substring(path.lastIndexOf('/') + 1))
+                .on("getMimeType", args -> mimeType)
+                .on("getLastModified", args -> LAST_MODIFIED)
+                .on("getMetadataValue", args -> metadata.get((String) args[0]))
+                .on("getOriginal", args -> renditions.get(0))
+                .on("getRenditions", args -> Collections.unmodifiableList(renditions))
+                .on("listRenditions", args -> renditions.iterator())
+                .on("getRendition", args -> args[0] instanceof RenditionPicker ?
+                        ((RenditionPicker) args[0]).getRendition(renditions.iterator()) : getRendition(renditions, (String) args[0]))
+                .build();
+        renditions.add(rendition(asset, DamConstants.ORIGINAL_FILE, mimeType, encode(original, mimeType)));
+        renditions.add(rendition(asset, WEB_RENDITION, MIME_JPEG, encode(scale(original, 1280, BufferedImage.TYPE_INT_RGB), MIME_JPEG)));
+        renditions.add(rendition(asset, THUMBNAIL_RENDITION, MIME_PNG,
+                encode(scale(original, 319, BufferedImage.TYPE_INT_ARGB), MIME_PNG)));
+        return asset;
+    }
+
+    private static Rendition getRendition(List<Rendition> renditions, String name) {
+        for (Rendition rendition : renditions) {
+            if (rendition.getName().equals(name)) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    private static Rendition rendition(Asset asset, String name, String mimeType, byte[] bytes) {
+        Calendar lastModified = Calendar.getInstance();
+        lastModified.setTimeInMillis(LAST_MODIFIED);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(JcrConstants.JCR_LASTMODIFIED, lastModified);
+        properties.put(JcrConstants.JCR_MIMETYPE, mimeType);
+        ValueMap valueMap = new ValueMapDecorator(properties);
+        return stub(Rendition.class)
+                .on("getAsset", args -> asset)
+                .on("getName", args -> name)
+                .on("getPath", args -> asset.getPath() + "/jcr:content/renditions/" + name)
+                .on("getMimeType", args -> mimeType)
+                .on("getSize", args -> (long) bytes.length)
+                .on("getStream", args -> new ByteArrayInputStream(bytes))
+                .on("getProperties", args -> valueMap)
+                .on("getValueMap", args -> valueMap)
+                .on("getResourceType", args -> JcrConstants.NT_FILE)
+                .build();
+    }
+
+    /**
+     * Scales an image down to fit the given width, flattening transparency onto white for the opaque types, as the DAM does for its
+     * JPEG renditions.
+     */
+    private static BufferedImage scale(BufferedImage image, int maxWidth, int type) {
+        int width = Math.min(maxWidth, image.getWidth());
+        int height = Math.max(1, image.getHeight() * width / image.getWidth());
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            if (type != BufferedImage.TYPE_INT_ARGB) {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, width, height);
+            }
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, String mimeType) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        String format = MIME_PNG.equals(mimeType) ? "png" : "jpeg";
+        if (!ImageIO.write(image, format, output)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Creates the resource resolver the servlet resolves the suffix's asset with, which also provides the content policy of the image
+     * components.
+     *
+     * @param asset  the asset its resources adapt to
+     * @param widths the allowed rendition widths of the content policy
+     * @param quality the JPEG quality of the content policy
+     * @return the resource resolver
+     */
+    @NotNull
+    static ResourceResolver resolver(@NotNull Asset asset, @NotNull String[] widths, int quality) {
+        Map<String, Object> policyProperties = new HashMap<>();
+        policyProperties.put(Image.PN_DESIGN_ALLOWED_RENDITION_WIDTHS, widths);
+        policyProperties.put(Image.PN_DESIGN_JPEG_QUALITY, quality);
+        ValueMap policyValueMap = new ValueMapDecorator(policyProperties);
+        ContentPolicy policy = stub(ContentPolicy.class)
+                .on("getPath", args -> "/conf/mysite/settings/wcm/policies/mysite/components/image/policy_benchmark")
+                .on("getProperties", args -> policyValueMap)
+                .build();
+        ContentPolicyManager policyManager = stub(ContentPolicyManager.class)
+                .on("getPolicy", args -> policy)
+                .build();
+        Resource[] assetResource = new Resource[1];
+        ResourceResolver resolver = stub(ResourceResolver.class)
+                .on("getResource", args -> asset.getPath().equals(args[args.length - 1]) ? assetResource[0] : null)
+                .on("adaptTo", args -> args[0] == ContentPolicyManager.class ? policyManager : null)
+                .build();
+        assetResource[0] = stub(Resource.class)
+                .on("getPath", args -> asset.getPath())
+                .on("getName", args -> asset.getName())
+                .on("getResourceType", args -> DamConstants.NT_DAM_ASSET)
+                .on("isResourceType", args -> DamConstants.NT_DAM_ASSET.equals(args[0]))
+                .on("getResourceResolver", args -> resolver)
+                .on("adaptTo", args -> args[0] == Asset.class ? asset : null)
+                .build();
+        return resolver;
+    }
+
+    /**
+     * Creates an image component.
+     *
+     * @param resolver   the resource resolver
+     * @param path       the component's path
+     * @param properties the component's properties, e.g. its crop, rotation and flips
+     * @return the component
+     */
+    @NotNull
+    static Resource component(@NotNull ResourceResolver resolver, @NotNull String path, @NotNull Map<String, Object> properties) {
+        ValueMap valueMap = new ValueMapDecorator(properties);
+        return stub(Resource.class)
+                .on("getPath", args -> path)
+                .on("getName", args -> path.substring(path.lastIndexOf('/') + 1))
+                .on("getResourceType", args -> COMPONENT_RESOURCE_TYPE)
+                .on("isResourceType", args -> COMPONENT_RESOURCE_TYPE.equals(args[0]))
+                .on("getResourceResolver", args -> resolver)
+                .on("getValueMap", args -> valueMap)
+                .on("adaptTo", args -> args[0] == ValueMap.class ? valueMap : null)
+                .build();
+    }
+
+    /**
+     * Creates a {@code GET} request for an image component, e.g. {@code /content/page/image.coreimg.82.1280.jpg/content/dam/image.jpg}.
+     *
+     * @param component      the image component
+     * @param selectorString the selectors, e.g. {@code coreimg.82.1280}
+     * @param extension      the extension, e.g. {@code jpg}
+     * @param suffix         the suffix, the path of the asset
+     * @return the request
+     */
+    @NotNull
+    static SlingHttpServletRequest request(@NotNull Resource component, @NotNull String selectorString, @NotNull String extension,
+                                           @NotNull String suffix) {
+        RequestPathInfo pathInfo = stub(RequestPathInfo.class)
+                .on("getResourcePath", args -> component.getPath())
+                .on("getSelectorString", args -> selectorString)
+                .on("getSelectors", args -> selectorString.split("\\."))
+                .on("getExtension", args -> extension)
+                .on("getSuffix", args -> suffix)
+                .build();
+        String uri = component.getPath() + '.' + selectorString + '.' + extension + suffix;
+        return stub(SlingHttpServletRequest.class)
+                .on("getMethod", args -> "GET")
+                .on("getRequestURI", args -> uri)
+                .on("getRequestPathInfo", args -> pathInfo)
+                .on("getResource", args -> component)
+                .on("getResourceResolver", args -> component.getResourceResolver())
+                // no conditional request headers
+                .on("getDateHeader", args -> -1L)
+                .build();
+    }
+
+    /**
+     * Creates the mime type service, for the image types the servlet delivers.
+     *
+     * @return the service
+     */
+    @NotNull
+    static MimeTypeService mimeTypeService() {
+        Map<String, String> mimeTypes = new HashMap<>();
+        mimeTypes.put("jpg", MIME_JPEG);
+        mimeTypes.put("jpeg", MIME_JPEG);
+        mimeTypes.put("png", MIME_PNG);
+        mimeTypes.put("gif", "image/gif");
+        mimeTypes.put("svg", "image/svg+xml");
+        Map<String, String> extensions = new HashMap<>();
+        extensions.put(MIME_JPEG, "jpeg");
+        extensions.put(MIME_PNG, "png");
+        extensions.put("image/gif", "gif");
+        extensions.put("image/svg+xml", "svg");
+        return stub(MimeTypeService.class)
+                .on("getMimeType", args -> {
+                    String name = (String) args[0];
+                    return mimeTypes.get(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+                })
+                .on("getExtension", args -> extensions.get((String) args[0]))
+                .build();
+    }
+
+    /**
+     * Creates the asset store, whose handlers decode a rendition with ImageIO, as the servlet's fallback decoder.
+     *
+     * @return the asset store
+     */
+    @NotNull
+    static AssetStore assetStore() {
+        AssetHandler handler = stub(AssetHandler.class)
+                .on("getImage", args -> ImageIO.read(((Rendition) args[0]).getStream()))
+                .build();
+        return stub(AssetStore.class)
+                .on("getAssetHandler", args -> handler)
+                .build();
+    }
+
+    /**
+     * Creates an OSGi configuration with the default values of its attributes but the given ones, as the framework does for a component
+     * without a configuration.
+     *
+     * @param type   the configuration type
+     * @param values the attribute values, by method name
+     * @return the configuration
+     */
+    @NotNull
+    static <A extends Annotation> A config(@NotNull Class<A> type, @NotNull Map<String, Object> values) {
+        return proxy(type, (proxy, method, args) -> {
+            if ("annotationType".equals(method.getName())) {
+                return type;
+            }
+            return values.containsKey(method.getName()) ? values.get(method.getName()) : method.getDefaultValue();
+        });
+    }
+
+    /**
+     * Sets a {@code @Reference} field, as the framework does when it injects a service.
+     *
+     * @param component the component
+     * @param name      the field's name
+     * @param service   the service
+     * @throws ReflectiveOperationException if the component doesn't have the field
+     */
+    static void inject(@NotNull Object component, @NotNull String name, @NotNull Object service) throws ReflectiveOperationException {
+        Field field = component.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(component, service);
+    }
+
+    static <T> Stub<T> stub(Class<T> type) {
+        return new Stub<>(type);
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName() + '@' + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+            return handler.invoke(proxy, method, args != null ? args : NO_ARGUMENTS);
+        }));
+    }
+
+    /**
+     * Computes the return value of a stubbed method.
+     */
+    @FunctionalInterface
+    interface Answer {
+        Object answer(@NotNull Object[] args) throws Exception;
+    }
+
+    /**
+     * Builds a stand-in for an interface, answering the methods with the given names, whatever their overload, and returning
+     * {@code null}, {@code false} or zero from the others.
+     */
+    static final class Stub<T> {
+
+        private final Class<T> type;
+        private final Map<String, Answer> answers = new HashMap<>();
+
+        private Stub(Class<T> type) {
+            this.type = type;
+        }
+
+        Stub<T> on(@NotNull String method, @NotNull Answer answer) {
+            answers.put(method, answer);
+            return this;
+        }
+
+        T build() {
+            Map<String, Answer> methods = new HashMap<>(answers);
+            return proxy(type, (proxy, method, args) -> {
+                Answer answer = methods.get(method.getName());
+                if (answer != null) {
+                    return answer.answer(args);
+                }
+                Class<?> returnType = method.getReturnType();
+                return returnType.isPrimitive() && returnType != void.class ? Array.get(Array.newInstance(returnType, 1), 0) : null;
+            });
+        }
+    }
+
+    /**
+     * A response that records its status and headers and counts the bytes of its body instead of keeping them.
+     */
+    static final class DiscardingResponse {
+
+        private final Map<String, String> headers = new HashMap<>();
+        private final CountingOutputStream body = new CountingOutputStream();
+        private final SlingHttpServletResponse response;
+        private int status = SlingHttpServletResponse.SC_OK;
+
+        DiscardingResponse() {
+            response = stub(SlingHttpServletResponse.class)
+                    .on("setStatus", args -> status = (Integer) args[0])
+                    .on("sendError", args -> status = (Integer) args[0])
+                    .on("getStatus", args -> status)
+                    .on("setHeader", args -> headers.put((String) args[0], String.valueOf(args[1])))
+                    .on("addHeader", args -> headers.putIfAbsent((String) args[0], String.valueOf(args[1])))
+                    .on("setDateHeader", args -> headers.put((String) args[0], String.valueOf(args[1])))
+                    .on("getHeader", args -> headers.get((String) args[0]))
+                    .on("containsHeader", args -> headers.containsKey((String) args[0]))
+                    .on("getOutputStream", args -> body)
+                    .build();
+        }
+
+        SlingHttpServletResponse get() {
+            return response;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        long getBytesWritten() {
+            return body.count;
+        }
+    }
+
+    private static final class CountingOutputStream extends ServletOutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new UnsupportedOperationException("The benchmark writes synchronously");
+        }
+    }
+}
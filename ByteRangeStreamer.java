@@ -0,0 +1,519 @@
+package com.mysite.core.servlets;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams binaries that are delivered as they are, answering {@code Range} requests with single part or {@code multipart/byteranges}
+ * partial responses. File backed binaries are written with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, other
+ * binaries are skipped and copied through a large buffer. The response's body can also be read chunk by chunk, for non-blocking
+ * writes.
+ */
+final class ByteRangeStreamer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ByteRangeStreamer.class);
+
+    static final String HEADER_RANGE = "Range";
+    static final String HEADER_IF_RANGE = "If-Range";
+    static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String BYTES_UNIT = "bytes";
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Requests asking for more ranges are answered with the whole binary, as allowed by RFC 7233.
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    private ByteRangeStreamer() {
+    }
+
+    /**
+     * A range of bytes, both ends included.
+     */
+    static final class ByteRange {
+
+        final long first;
+        final long last;
+
+        ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long length() {
+            return last - first + 1;
+        }
+
+        @Override
+        public String toString() {
+            return first + "-" + last;
+        }
+    }
+
+    /**
+     * Prepares the response for streaming a binary, honouring the request's {@code Range} and {@code If-Range} headers: sets the
+     * status, content type, length and range headers and returns the body to write. The response's {@code ETag} and
+     * {@code Last-Modified} headers, if any, must already be set, as {@code If-Range} is validated against them.
+     *
+     * @param request     the request
+     * @param response    the response
+     * @param binary      the binary, which is closed with the returned body
+     * @param length      the binary's length, or a negative value if it is unknown, in which case ranges are not supported
+     * @param contentType the binary's content type
+     * @return the body
+     */
+    @NotNull
+    static Body prepare(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull InputStream binary,
+                        long length, @NotNull String contentType) {
+        Source source = binary instanceof FileInputStream ? new ChannelSource(((FileInputStream) binary).getChannel(), binary) :
+                new StreamSource(binary);
+        return prepare(request, response, source, length, contentType);
+    }
+
+    /**
+     * Prepares the response for streaming a file, honouring the request's {@code Range} and {@code If-Range} headers.
+     *
+     * @param request     the request
+     * @param response    the response
+     * @param channel     the file, which is closed with the returned body
+     * @param length      the file's length
+     * @param contentType the file's content type
+     * @return the body
+     * @see #prepare(HttpServletRequest, HttpServletResponse, InputStream, long, String)
+     */
+    @NotNull
+    static Body prepare(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull FileChannel channel,
+                        long length, @NotNull String contentType) {
+        return prepare(request, response, new ChannelSource(channel, channel), length, contentType);
+    }
+
+    /**
+     * Wraps already encoded bytes, which are always streamed whole, into a body.
+     *
+     * @param bytes the bytes
+     * @return the body
+     */
+    @NotNull
+    static Body of(@NotNull byte[] bytes) {
+        return new Body(new ArraySource(bytes), Collections.singletonList(new ByteRange(0, bytes.length - 1)), bytes.length);
+    }
+
+    private static Body prepare(HttpServletRequest request, HttpServletResponse response, Source source, long length,
+                                String contentType) {
+        if (length < 0) {
+            response.setContentType(contentType);
+            return new Body(source, Collections.singletonList(null), -1);
+        }
+        response.setHeader(HEADER_ACCEPT_RANGES, BYTES_UNIT);
+        List<ByteRange> ranges = isRangeValid(request, response) ? parse(request.getHeader(HEADER_RANGE), length) : null;
+        if (ranges == null) {
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            return new Body(source, Collections.singletonList(new ByteRange(0, length - 1)), length);
+        }
+        if (ranges.isEmpty()) {
+            LOG.debug("Range {} cannot be satisfied for a binary of {} bytes.", request.getHeader(HEADER_RANGE), length);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + length);
+            response.setContentLength(0);
+            return new Body(source, Collections.emptyList(), 0);
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setContentType(contentType);
+            response.setHeader(HEADER_CONTENT_RANGE, getContentRange(range, length));
+            response.setContentLengthLong(range.length());
+            return new Body(source, ranges, range.length());
+        }
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+        List<Object> parts = new ArrayList<>(ranges.size() * 2 + 1);
+        long contentLength = 0;
+        long bytes = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = (CRLF + "--" + boundary + CRLF + "Content-Type: " + contentType + CRLF + HEADER_CONTENT_RANGE + ": " +
+                    getContentRange(range, length) + CRLF + CRLF).getBytes(StandardCharsets.US_ASCII);
+            parts.add(partHeader);
+            parts.add(range);
+            contentLength += partHeader.length + range.length();
+            bytes += range.length();
+        }
+        byte[] closingBoundary = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        parts.add(closingBoundary);
+        contentLength += closingBoundary.length;
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        LOG.debug("Streaming {} ranges of a binary of {} bytes.", ranges.size(), length);
+        return new Body(source, parts, bytes);
+    }
+
+    /**
+     * Parses a {@code Range} header. Overlapping and adjacent ranges are merged and the ranges are sorted, so that the binary is read
+     * sequentially.
+     *
+     * @param header the header's value
+     * @param length the binary's length
+     * @return the ranges to stream; an empty list if none of them can be satisfied; {@code null} if the whole binary has to be streamed,
+     * because there is no header, the header is invalid or asks for too many ranges
+     */
+    @Nullable
+    static List<ByteRange> parse(@Nullable String header, long length) {
+        if (StringUtils.isBlank(header) || length <= 0) {
+            return null;
+        }
+        int equals = header.indexOf('=');
+        if (equals < 0 || !BYTES_UNIT.equalsIgnoreCase(header.substring(0, equals).trim())) {
+            return null;
+        }
+        String[] specs = StringUtils.split(header.substring(equals + 1), ',');
+        if (specs.length == 0 || specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String firstValue = spec.substring(0, dash).trim();
+                String lastValue = spec.substring(dash + 1).trim();
+                if (firstValue.isEmpty()) {
+                    // suffix range: the last n bytes
+                    long suffix = Long.parseLong(lastValue);
+                    if (suffix > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(firstValue);
+                long last = lastValue.isEmpty() ? length - 1 : Long.parseLong(lastValue);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < length) {
+                    ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (ranges.size() <= 1) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range.first));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, next.last));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return Collections.unmodifiableList(merged);
+    }
+
+    /**
+     * Checks the {@code If-Range} precondition: a range is only served if the client's copy is still current, which requires a strong
+     * entity tag match or the exact last modified date.
+     */
+    private static boolean isRangeValid(HttpServletRequest request, HttpServletResponse response) {
+        String ifRange = request.getHeader(HEADER_IF_RANGE);
+        if (StringUtils.isBlank(ifRange)) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(response.getHeader(HEADER_ETAG));
+        }
+        return ifRange.equals(response.getHeader(HEADER_LAST_MODIFIED));
+    }
+
+    private static String getContentRange(ByteRange range, long length) {
+        return BYTES_UNIT + " " + range + "/" + length;
+    }
+
+    /**
+     * The body of a response: the parts of a multipart response's framing and the ranges of the binary, which can either be written to
+     * a blocking output stream or be read chunk by chunk, as a non-blocking output stream becomes writable.
+     */
+    static final class Body implements Closeable {
+
+        private final Source source;
+        /** framing bytes, ranges of the binary, or {@code null} for the whole binary of unknown length */
+        private final List<?> parts;
+        private final long length;
+        private int part;
+        private long offset;
+
+        private Body(Source source, List<?> parts, long length) {
+            this.source = source;
+            this.parts = parts;
+            this.length = length;
+        }
+
+        /**
+         * @return the number of bytes of the binary in the body, or a negative value if it is unknown
+         */
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * @return {@code true} if the binary is held in memory or in a local file, and can be read from the container's threads once the
+         * request has been processed, {@code false} if it's a stream that has to be read on the request thread, e.g. a repository
+         * binary, which is only readable while the request's session is open
+         */
+        boolean isDetached() {
+            return !(source instanceof StreamSource);
+        }
+
+        /**
+         * Writes the whole body.
+         *
+         * @param output the output stream
+         * @return the number of bytes of the binary written
+         * @throws IOException if the binary cannot be read or the output stream cannot be written
+         */
+        long writeTo(@NotNull OutputStream output) throws IOException {
+            long bytes = 0;
+            for (; part < parts.size(); part++) {
+                Object current = parts.get(part);
+                if (current instanceof byte[]) {
+                    output.write((byte[]) current);
+                } else if (current == null) {
+                    bytes += source.copyAll(output);
+                } else {
+                    ByteRange range = (ByteRange) current;
+                    source.copy(range.first, range.length(), output);
+                    bytes += range.length();
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * Reads the next chunk of the body.
+         *
+         * @param buffer the buffer the chunk is read into
+         * @return the chunk's length, {@code -1} at the end of the body
+         * @throws IOException if the binary cannot be read
+         */
+        int read(@NotNull byte[] buffer) throws IOException {
+            while (part < parts.size()) {
+                Object current = parts.get(part);
+                int read;
+                if (current instanceof byte[]) {
+                    byte[] bytes = (byte[]) current;
+                    read = (int) Math.min(buffer.length, bytes.length - offset);
+                    System.arraycopy(bytes, (int) offset, buffer, 0, read);
+                } else if (current == null) {
+                    read = source.read(offset, buffer, buffer.length);
+                } else {
+                    ByteRange range = (ByteRange) current;
+                    read = (int) Math.min(buffer.length, range.length() - offset);
+                    if (read > 0 && source.read(range.first + offset, buffer, read) < read) {
+                        throw new IOException("Unexpected end of binary at byte " + (range.first + offset));
+                    }
+                }
+                if (read > 0) {
+                    offset += read;
+                    return read;
+                }
+                part++;
+                offset = 0;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    /**
+     * A binary read from the start to the end, positions only ever moving forward.
+     */
+    private interface Source extends Closeable {
+
+        void copy(long position, long count, OutputStream output) throws IOException;
+
+        long copyAll(OutputStream output) throws IOException;
+
+        /**
+         * Reads up to {@code length} bytes at the given position, returning {@code -1} or less than {@code length} bytes only at the end
+         * of the binary.
+         */
+        int read(long position, byte[] buffer, int length) throws IOException;
+    }
+
+    private static final class ChannelSource implements Source {
+
+        private final FileChannel channel;
+        private final Closeable resource;
+
+        ChannelSource(FileChannel channel, Closeable resource) {
+            this.channel = channel;
+            this.resource = resource;
+        }
+
+        @Override
+        public void copy(long position, long count, OutputStream output) throws IOException {
+            WritableByteChannel target = Channels.newChannel(output);
+            long end = position + count;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of file at byte " + position);
+                }
+                position += transferred;
+            }
+        }
+
+        @Override
+        public long copyAll(OutputStream output) throws IOException {
+            long size = channel.size();
+            copy(0, size, output);
+            return size;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int length) throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position()) < 0) {
+                    break;
+                }
+            }
+            return target.position() == 0 && length > 0 ? -1 : target.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            resource.close();
+        }
+    }
+
+    private static final class StreamSource implements Source {
+
+        private final InputStream stream;
+        private byte[] buffer;
+        private long position;
+
+        StreamSource(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void copy(long position, long count, OutputStream output) throws IOException {
+            seek(position);
+            long copied = IOUtils.copyLarge(stream, output, 0, count, getBuffer());
+            if (copied < count) {
+                throw new IOException("Unexpected end of binary at byte " + (position + copied));
+            }
+            this.position = position + count;
+        }
+
+        @Override
+        public long copyAll(OutputStream output) throws IOException {
+            long copied = IOUtils.copyLarge(stream, output, getBuffer());
+            position += copied;
+            return copied;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int length) throws IOException {
+            seek(position);
+            int read = IOUtils.read(stream, buffer, 0, length);
+            this.position += read;
+            return read == 0 && length > 0 ? -1 : read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        private void seek(long position) throws IOException {
+            if (position < this.position) {
+                throw new IOException("Cannot rewind the binary to byte " + position);
+            }
+            IOUtils.skipFully(stream, position - this.position);
+            this.position = position;
+        }
+
+        private byte[] getBuffer() {
+            if (buffer == null) {
+                buffer = new byte[COPY_BUFFER_SIZE];
+            }
+            return buffer;
+        }
+    }
+
+    private static final class ArraySource implements Source {
+
+        private final byte[] bytes;
+
+        ArraySource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void copy(long position, long count, OutputStream output) throws IOException {
+            output.write(bytes, (int) position, (int) count);
+        }
+
+        @Override
+        public long copyAll(OutputStream output) throws IOException {
+            output.write(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int length) {
+            int read = (int) Math.min(length, bytes.length - position);
+            if (read <= 0) {
+                return -1;
+            }
+            System.arraycopy(bytes, (int) position, buffer, 0, read);
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
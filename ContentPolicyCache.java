@@ -0,0 +1,168 @@
+package com.mysite.core.servlets;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adobe.cq.wcm.core.components.models.Image;
+import com.day.cq.wcm.api.policies.ContentPolicy;
+import com.day.cq.wcm.api.policies.ContentPolicyManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Shared cache of the image components' content policies, reduced to what the {@link AdaptiveImageServlet} validates requests
+ * against: the allowed widths and the allowed JPEG quality. Policies and their mappings live below {@code /conf}, so any change there
+ * invalidates the whole cache.
+ */
+@Component(
+        service = { ContentPolicyCache.class, ResourceChangeListener.class },
+        property = {
+                ResourceChangeListener.PATHS + "=/conf",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        })
+@Designate(ocd = ContentPolicyCache.Config.class)
+public class ContentPolicyCache implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentPolicyCache.class);
+
+    private Cache<String, AllowedPolicy> policies = CacheBuilder.newBuilder().build();
+    /**
+     * Incremented by every change, so that a policy resolved while a change is being handled isn't cached after the invalidation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @ObjectClassDefinition(name = "MySite - Content Policy Cache", description = "Caches the allowed widths and quality of the image " +
+            "components' content policies")
+    @interface Config {
+
+        @AttributeDefinition(name = "Maximum components", description = "Maximum number of image components whose policy is cached")
+        long max_components() default 10000;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        policies = CacheBuilder.newBuilder().maximumSize(config.max_components()).build();
+    }
+
+    /**
+     * Returns the allowed widths and quality of the given image component. The policy is resolved through the component's resource
+     * resolver the first time the component is requested.
+     *
+     * @param component the image component
+     * @return the component's allowed policy, {@link AllowedPolicy#NONE} if the component doesn't have a content policy
+     */
+    @NotNull
+    public AllowedPolicy getPolicy(@NotNull Resource component) {
+        // the policy mapping is resolved from the component's location in the page's template, so the component path identifies it
+        String key = component.getResourceType() + "|" + component.getPath();
+        AllowedPolicy policy = policies.getIfPresent(key);
+        if (policy == null) {
+            long loadGeneration = generation.get();
+            policy = load(component);
+            if (generation.get() == loadGeneration) {
+                policies.put(key, policy);
+            }
+        }
+        return policy;
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        generation.incrementAndGet();
+        LOGGER.debug("{} changes below /conf, invalidating {} cached content policies.", changes.size(), policies.size());
+        policies.invalidateAll();
+    }
+
+    private AllowedPolicy load(Resource component) {
+        ContentPolicyManager policyManager = component.getResourceResolver().adaptTo(ContentPolicyManager.class);
+        if (policyManager == null) {
+            LOGGER.warn("Could not get policy manager from resource resolver!");
+            return AllowedPolicy.NONE;
+        }
+        ContentPolicy contentPolicy = policyManager.getPolicy(component);
+        if (contentPolicy == null) {
+            return AllowedPolicy.NONE;
+        }
+        String[] allowedRenditionWidths = contentPolicy.getProperties().get(Image.PN_DESIGN_ALLOWED_RENDITION_WIDTHS, new String[0]);
+        int[] widths = new int[allowedRenditionWidths.length];
+        int count = 0;
+        for (String width : allowedRenditionWidths) {
+            try {
+                widths[count] = Integer.parseInt(width);
+                count++;
+            } catch (NumberFormatException e) {
+                LOGGER.warn("One of the configured widths ({}) from the {} content policy is not a valid Integer.", width,
+                        contentPolicy.getPath());
+                break;
+            }
+        }
+        int quality = contentPolicy.getProperties().get(Image.PN_DESIGN_JPEG_QUALITY, AdaptiveImageServlet.DEFAULT_JPEG_QUALITY);
+        return new AllowedPolicy(Arrays.copyOf(widths, count), quality);
+    }
+
+    /**
+     * Immutable view on the allowed widths and JPEG quality of an image component's content policy.
+     */
+    public static final class AllowedPolicy {
+
+        /**
+         * Policy of the components that don't have a content policy.
+         */
+        public static final AllowedPolicy NONE = new AllowedPolicy(new int[0], AdaptiveImageServlet.DEFAULT_JPEG_QUALITY);
+
+        private final int[] widths;
+        private final int quality;
+
+        AllowedPolicy(@NotNull int[] widths, int quality) {
+            this.widths = widths.clone();
+            Arrays.sort(this.widths);
+            this.quality = quality;
+        }
+
+        /**
+         * @return {@code true} if the policy doesn't define any widths
+         */
+        public boolean hasNoWidths() {
+            return widths.length == 0;
+        }
+
+        /**
+         * @param width the requested width
+         * @return {@code true} if the width is one of the policy's allowed widths
+         */
+        public boolean isAllowedWidth(int width) {
+            return Arrays.binarySearch(widths, width) >= 0;
+        }
+
+        /**
+         * @return a copy of the allowed widths, in ascending order
+         */
+        @NotNull
+        public int[] getWidths() {
+            return widths.clone();
+        }
+
+        /**
+         * @return the allowed JPEG quality, in percent
+         */
+        public int getQuality() {
+            return quality;
+        }
+    }
+}
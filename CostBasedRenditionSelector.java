@@ -0,0 +1,101 @@
+package com.mysite.core.servlets;
+
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default {@link RenditionSelector}, picking the rendition that is cheapest to deliver at the requested width. Every rendition at least
+ * as wide as requested, and small enough to be processed, is scored in decoded-pixel equivalents:
+ * <ul>
+ *     <li>the decode cost, the rendition's pixels weighted by how expensive its format is to decode;</li>
+ *     <li>the downscale cost, the pixels that still have to be resampled away;</li>
+ *     <li>renditions that can be streamed as they are only cost their bytes, as they are neither decoded nor re-encoded.</li>
+ * </ul>
+ */
+@Component(service = RenditionSelector.class)
+@Designate(ocd = CostBasedRenditionSelector.Config.class)
+public class CostBasedRenditionSelector implements RenditionSelector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CostBasedRenditionSelector.class);
+
+    private double pngFactor = 2.0d;
+    private double downscaleWeight = 0.5d;
+    private double streamWeight = 0.1d;
+
+    @ObjectClassDefinition(name = "MySite - Cost Based Rendition Selector", description = "Selects the rendition that is cheapest to " +
+            "decode, downscale and deliver for a requested width")
+    @interface Config {
+
+        @AttributeDefinition(name = "PNG decode factor", description = "Decode cost of a PNG pixel relative to a JPEG pixel")
+        double png_decode_factor() default 2.0d;
+
+        @AttributeDefinition(name = "Downscale weight", description = "Cost of resampling away a pixel relative to decoding a JPEG pixel")
+        double downscale_weight() default 0.5d;
+
+        @AttributeDefinition(name = "Stream weight", description = "Cost of streaming a byte of a rendition that needs no processing " +
+                "relative to decoding a JPEG pixel")
+        double stream_weight() default 0.1d;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        pngFactor = config.png_decode_factor();
+        downscaleWeight = config.downscale_weight();
+        streamWeight = config.stream_weight();
+    }
+
+    @Override
+    @Nullable
+    public RenditionInfo select(@NotNull List<RenditionInfo> renditions, int width, @NotNull String mimeType) {
+        RenditionInfo best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (RenditionInfo rendition : renditions) {
+            if (rendition.getWidth() <= 0 || rendition.getWidth() < width || rendition.getWidth() > AdaptiveImageServlet.DEFAULT_MAX_SIZE) {
+                continue;
+            }
+            double cost = getCost(rendition, width, mimeType);
+            LOGGER.debug("Rendition {} ({}x{}, {}, {} bytes) costs {} for width {}.", rendition.getName(), rendition.getWidth(),
+                    rendition.getHeight(), rendition.getMimeType(), rendition.getSize(), cost, width);
+            if (cost < bestCost) {
+                best = rendition;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private double getCost(@NotNull RenditionInfo rendition, int width, @NotNull String mimeType) {
+        if (rendition.getWidth() == width && mimeType.equals(rendition.getMimeType())) {
+            return rendition.getSize() * streamWeight;
+        }
+        double pixels = (double) rendition.getWidth() * rendition.getHeight();
+        double decodeCost = pixels * getDecodeFactor(rendition.getMimeType());
+        double targetPixels = width > 0 ? pixels * width / rendition.getWidth() * width / rendition.getWidth() : pixels;
+        return decodeCost + (pixels - targetPixels) * downscaleWeight;
+    }
+
+    private double getDecodeFactor(@Nullable String mimeType) {
+        if ("image/jpeg".equals(mimeType)) {
+            // the reference: JPEG renditions are decoded subsampled by the region decoder
+            return 1.0d;
+        }
+        if ("image/png".equals(mimeType)) {
+            return pngFactor;
+        }
+        if ("image/gif".equals(mimeType)) {
+            return 1.5d;
+        }
+        // TIFF, PSD and other originals go through the DAM's asset handlers
+        return 3.0d;
+    }
+}
@@ -0,0 +1,261 @@
+package com.mysite.core.servlets;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.hash.Hashing;
+
+/**
+ * A bounded, on-disk store for the encoded bytes of transformed images. Entries are evicted in least recently used order once the
+ * configured size is exceeded; the index is rebuilt from the cache directory on start-up, so the cache survives restarts.
+ */
+class DerivativeCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DerivativeCache.class);
+    private static final String ENTRY_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    private final Map<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentSize;
+
+    DerivativeCache(@NotNull File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                    entries.put(file.getName(), file.length());
+                    currentSize += file.length();
+                } else if (file.getName().endsWith(TEMP_SUFFIX) && !file.delete()) {
+                    LOG.debug("Cannot remove stale temporary cache file {}", file.getPath());
+                }
+            }
+        }
+        evict();
+        LOG.info("Derivative cache initialised in {} with {} entries ({} bytes).", directory.getPath(), entries.size(), currentSize);
+    }
+
+    /**
+     * Builds the cache key of an image derivative.
+     *
+     * @param assetPath    the path of the transformed asset
+     * @param lastModified the asset's last modified date, in milliseconds
+     * @param spec         the transformation, including the output mime type
+     * @return the cache key
+     */
+    @NotNull
+    static String key(@NotNull String assetPath, long lastModified, @NotNull TransformationSpec spec) {
+        return assetPath + '|' + lastModified + '|' + spec.getKey();
+    }
+
+    /**
+     * Opens the cached derivative stored for the given key.
+     *
+     * @param key the cache key
+     * @return a read-only channel on the cached bytes, or {@code null} if there's no entry for the key; the caller has to close it
+     */
+    @Nullable
+    FileChannel open(@NotNull String key) {
+        String fileName = toFileName(key);
+        synchronized (this) {
+            if (entries.get(fileName) == null) {
+                return null;
+            }
+        }
+        try {
+            return FileChannel.open(new File(directory, fileName).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            remove(fileName);
+        } catch (IOException e) {
+            LOG.warn("Cannot open cached derivative {}", fileName, e);
+        }
+        return null;
+    }
+
+    /**
+     * Starts storing a derivative for the given key. Its bytes are written to a temporary file as they are produced, so that the encoded
+     * image is never held in memory, and become the cached entry once {@link Entry#commit() committed}.
+     *
+     * @param key the cache key
+     * @return the entry, which has to be closed, or {@code null} if the temporary file cannot be created
+     */
+    @Nullable
+    Entry create(@NotNull String key) {
+        String fileName = toFileName(key);
+        try {
+            Path temp = Files.createTempFile(directory.toPath(), "derivative", TEMP_SUFFIX);
+            try {
+                return new Entry(fileName, temp);
+            } catch (IOException e) {
+                deleteQuietly(temp);
+                throw e;
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot store derivative {} in the cache", fileName, e);
+            return null;
+        }
+    }
+
+    private synchronized void remove(String fileName) {
+        Long size = entries.remove(fileName);
+        if (size != null) {
+            currentSize -= size;
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (currentSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            currentSize -= eldest.getValue();
+            deleteQuietly(new File(directory, eldest.getKey()).toPath());
+        }
+    }
+
+    /**
+     * A derivative being stored. Failing to write its temporary file doesn't fail the writes to its output stream, so that a response the
+     * bytes are teed to is not affected; the entry is then not committed.
+     */
+    final class Entry implements Closeable {
+
+        private final String fileName;
+        private final Path temp;
+        private final OutputStream file;
+        private final OutputStream output;
+        private long size;
+        private boolean failed;
+        private boolean committed;
+
+        private Entry(String fileName, Path temp) throws IOException {
+            this.fileName = fileName;
+            this.temp = temp;
+            this.file = new BufferedOutputStream(Files.newOutputStream(temp));
+            this.output = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(@NotNull byte[] b, int off, int len) {
+                    if (failed) {
+                        return;
+                    }
+                    size += len;
+                    if (size > maxSize) {
+                        fail(null);
+                        return;
+                    }
+                    try {
+                        file.write(b, off, len);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    closeFile();
+                }
+            };
+        }
+
+        /**
+         * @return the stream the derivative's bytes are written to
+         */
+        @NotNull
+        OutputStream getOutputStream() {
+            return output;
+        }
+
+        /**
+         * Stores the bytes written so far under the entry's key, evicting the least recently used entries if needed.
+         *
+         * @return {@code true} if the derivative was stored, {@code false} if its bytes could not be written or it's larger than the cache
+         */
+        boolean commit() {
+            closeFile();
+            if (failed) {
+                return false;
+            }
+            try {
+                Files.move(temp, new File(directory, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                fail(e);
+                return false;
+            }
+            committed = true;
+            synchronized (DerivativeCache.this) {
+                Long previous = entries.put(fileName, size);
+                currentSize += size - (previous == null ? 0 : previous);
+                evict();
+            }
+            return true;
+        }
+
+        private void closeFile() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(@Nullable IOException e) {
+            if (!failed && e != null) {
+                LOG.warn("Cannot store derivative {} in the cache", fileName, e);
+            }
+            failed = true;
+        }
+
+        /**
+         * Discards the derivative's temporary file, unless the entry was committed.
+         */
+        @Override
+        public void close() {
+            if (!committed) {
+                closeFile();
+                deleteQuietly(temp);
+            }
+        }
+    }
+
+    private static String toFileName(String key) {
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString() + ENTRY_SUFFIX;
+    }
+
+    private static void deleteQuietly(@Nullable Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.debug("Cannot delete cache file {}", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.mysite.core.servlets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jcr.query.Query;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.resource.api.JcrResourceConstants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.day.cq.commons.DownloadResource;
+import com.day.cq.contentsync.handler.util.RequestResponseFactory;
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.DamConstants;
+
+/**
+ * Warms the {@link AdaptiveImageServlet}'s derivative cache when an asset or an image component changes, so that the first visitor
+ * after an activation doesn't pay for the transformations. For every image component showing the changed asset, the widths and quality
+ * allowed by the component's content policy are requested through the servlet itself, as internal requests, so the derivatives are
+ * produced by the same code and stored under the same keys as those of the visitors' requests.
+ * <p>
+ * Changes are handled in the background by low priority threads. A change is processed once the configured delay has elapsed, and
+ * further changes of the same asset or component in the meantime are merged into it; once the configured number of changes is waiting,
+ * further changes are dropped and left to the visitors. The renditions' dimensions written back by the {@link RenditionDimensionWriter}
+ * don't change any derivative and are ignored. Requires the derivative cache to be enabled and a service user mapped to the
+ * {@value #SUBSERVICE} subservice with read access to {@code /content} and {@code /conf}.
+ * <p>
+ * The image components showing a changed asset are looked up by their {@code fileReference} and resource type, a query served by the
+ * {@code /oak:index/imageComponentReferences} index shipped with the component.
+ */
+@Component(
+        service = { DerivativePrerenderer.class, ResourceChangeListener.class },
+        property = {
+                ResourceChangeListener.PATHS + "=/content",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED"
+        })
+@Designate(ocd = DerivativePrerenderer.Config.class)
+public class DerivativePrerenderer implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DerivativePrerenderer.class);
+    static final String SUBSERVICE = "derivative-prerenderer";
+    private static final String DAM_ROOT = "/content/dam/";
+    private static final String JCR_CONTENT_SEGMENT = "/" + JcrConstants.JCR_CONTENT;
+    private static final String RENDITIONS_SEGMENT = JCR_CONTENT_SEGMENT + "/" + DamConstants.RENDITIONS_FOLDER + "/";
+    /**
+     * The rendition metadata written back by the {@link RenditionDimensionWriter}, which doesn't change the derivatives.
+     */
+    private static final List<String> DIMENSION_PROPERTIES = Arrays.asList(DamConstants.TIFF_IMAGEWIDTH, DamConstants.TIFF_IMAGELENGTH);
+    private static final String HEADER_ACCEPT = "Accept";
+    private static final String DEFAULT_EXTENSION = "jpeg";
+    private static final List<String> EXTENSIONS = Arrays.asList("jpg", "jpeg", "png", "gif", "svg", "webp", "avif");
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ScheduledThreadPoolExecutor executor;
+    private Set<String> resourceTypes = Collections.emptySet();
+    private String[] acceptHeaders = new String[0];
+    private long delay;
+    private int queueSize;
+    private int maxComponentsPerAsset;
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference
+    private SlingRequestProcessor requestProcessor;
+
+    @Reference
+    private RequestResponseFactory requestResponseFactory;
+
+    @Reference
+    private ContentPolicyCache contentPolicyCache;
+
+    @ObjectClassDefinition(name = "MySite - Derivative Prerenderer", description = "Renders the images allowed by the image " +
+            "components' policies in the background when assets or image components change")
+    @interface Config {
+
+        @AttributeDefinition(name = "Enabled", description = "Render the derivatives of changed assets and image components")
+        boolean enabled() default false;
+
+        @AttributeDefinition(name = "Image resource types", description = "Resource types of the image components rendered by the " +
+                "adaptive image servlet")
+        String[] resource_types() default { "mysite/components/image" };
+
+        @AttributeDefinition(name = "Accept headers", description = "Accept headers of the additional requests made for every width, " +
+                "e.g. image/webp to render the negotiated formats as well; leave empty to render the requested formats only")
+        String[] accept_headers() default {};
+
+        @AttributeDefinition(name = "Delay (ms)", description = "Time waited after a change before rendering, during which further " +
+                "changes of the same asset or component are merged")
+        long delay_ms() default 10000;
+
+        @AttributeDefinition(name = "Threads", description = "Number of low priority threads rendering derivatives")
+        int threads() default 1;
+
+        @AttributeDefinition(name = "Queue size", description = "Maximum number of assets and components waiting to be rendered; " +
+                "further changes are skipped until the queue drains")
+        int queue_size() default 1000;
+
+        @AttributeDefinition(name = "Maximum components per asset", description = "Maximum number of image components rendered for a " +
+                "changed asset")
+        int max_components_per_asset() default 100;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        deactivate();
+        resourceTypes = new HashSet<>(Arrays.asList(config.resource_types()));
+        acceptHeaders = config.accept_headers();
+        delay = Math.max(0, config.delay_ms());
+        queueSize = Math.max(1, config.queue_size());
+        maxComponentsPerAsset = Math.max(1, config.max_components_per_asset());
+        if (config.enabled()) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = new ScheduledThreadPoolExecutor(Math.max(1, config.threads()), runnable -> {
+                Thread thread = new Thread(runnable, "derivative-prerenderer-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        if (executor == null) {
+            return;
+        }
+        List<String> components = new ArrayList<>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            int contentIndex = path.indexOf(JCR_CONTENT_SEGMENT);
+            if (path.startsWith(DAM_ROOT)) {
+                if (contentIndex > 0 && !isDimensionChange(change, contentIndex)) {
+                    // the asset's original, renditions or metadata changed
+                    String assetPath = path.substring(0, contentIndex);
+                    schedule("asset:" + assetPath, resolver -> renderAsset(resolver, assetPath));
+                }
+            } else if (contentIndex > 0) {
+                components.add(path);
+            }
+        }
+        if (!components.isEmpty()) {
+            scheduleComponents(components);
+        }
+    }
+
+    /**
+     * Checks whether a change is limited to the dimension properties of a rendition's {@code jcr:content}, as written back by the
+     * {@link RenditionDimensionWriter}. Changes whose properties aren't reported, e.g. some external ones, aren't considered as such.
+     */
+    private static boolean isDimensionChange(ResourceChange change, int contentIndex) {
+        String path = change.getPath();
+        int renditionIndex = contentIndex + RENDITIONS_SEGMENT.length();
+        // <asset>/jcr:content/renditions/<rendition>/jcr:content
+        boolean renditionContent = path.startsWith(RENDITIONS_SEGMENT, contentIndex) && path.endsWith(JCR_CONTENT_SEGMENT) &&
+                path.indexOf('/', renditionIndex) == path.length() - JCR_CONTENT_SEGMENT.length();
+        if (change.getType() != ResourceChange.ChangeType.CHANGED || !renditionContent) {
+            return false;
+        }
+        Set<String> changed = change.getChangedPropertyNames();
+        Set<String> added = change.getAddedPropertyNames();
+        Set<String> removed = change.getRemovedPropertyNames();
+        if (changed == null && added == null || removed != null && !removed.isEmpty()) {
+            return false;
+        }
+        return (changed == null || DIMENSION_PROPERTIES.containsAll(changed)) && (added == null || DIMENSION_PROPERTIES.containsAll(added));
+    }
+
+    /**
+     * Schedules the changed resources that are image components. Every change of a page's content is reported, so the resource types
+     * are checked before scheduling, to keep the queue for the changes that produce derivatives.
+     */
+    private void scheduleComponents(List<String> paths) {
+        if (pending.size() >= queueSize) {
+            return;
+        }
+        Map<String, Object> authenticationInfo = Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE);
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(authenticationInfo)) {
+            for (String path : paths) {
+                Resource component = resolver.getResource(path);
+                if (component != null && isImageComponent(component)) {
+                    schedule("component:" + path, renderer -> renderComponent(renderer, path));
+                }
+            }
+        } catch (LoginException e) {
+            LOGGER.warn("Cannot log in as the {} service user; derivatives cannot be prerendered.", SUBSERVICE, e);
+        }
+    }
+
+    /**
+     * Schedules a job, unless the same job is already waiting or the queue is full.
+     */
+    private void schedule(String key, Job job) {
+        ScheduledThreadPoolExecutor renderer = executor;
+        if (renderer == null || pending.size() >= queueSize || !pending.add(key)) {
+            return;
+        }
+        try {
+            renderer.schedule(() -> {
+                pending.remove(key);
+                run(key, job);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+        }
+    }
+
+    private void run(String key, Job job) {
+        Map<String, Object> authenticationInfo = Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE);
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(authenticationInfo)) {
+            job.run(resolver);
+        } catch (LoginException e) {
+            LOGGER.warn("Cannot log in as the {} service user; derivatives cannot be prerendered.", SUBSERVICE, e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Cannot prerender the derivatives of {}.", key, e);
+        }
+    }
+
+    private void renderAsset(ResourceResolver resolver, String assetPath) {
+        Resource assetResource = resolver.getResource(assetPath);
+        if (assetResource == null || assetResource.adaptTo(Asset.class) == null || resourceTypes.isEmpty()) {
+            return;
+        }
+        Iterator<Resource> components = resolver.findResources(getComponentQuery(assetPath), Query.JCR_SQL2);
+        int count = 0;
+        while (components.hasNext() && count < maxComponentsPerAsset) {
+            Resource component = components.next();
+            if (isImageComponent(component)) {
+                count++;
+                if (!render(component, assetPath)) {
+                    return;
+                }
+            }
+        }
+        LOGGER.debug("Prerendered the derivatives of asset {} for {} image components.", assetPath, count);
+    }
+
+    /**
+     * Builds the query for the image components referencing an asset, restricted to the configured resource types so that it is
+     * answered by the {@code imageComponentReferences} index instead of traversing {@code /content}.
+     */
+    private String getComponentQuery(String assetPath) {
+        StringBuilder query = new StringBuilder("SELECT * FROM [nt:unstructured] AS component WHERE ISDESCENDANTNODE(component, " +
+                "'/content') AND component.[").append(DownloadResource.PN_REFERENCE).append("] = '").append(escape(assetPath))
+                .append("' AND (");
+        boolean first = true;
+        for (String resourceType : resourceTypes) {
+            if (!first) {
+                query.append(" OR ");
+            }
+            first = false;
+            query.append("component.[").append(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY).append("] = '")
+                    .append(escape(resourceType)).append('\'');
+        }
+        return query.append(')').toString();
+    }
+
+    private static String escape(String literal) {
+        return literal.replace("'", "''");
+    }
+
+    private void renderComponent(ResourceResolver resolver, String path) {
+        Resource component = resolver.getResource(path);
+        if (component == null || !isImageComponent(component)) {
+            return;
+        }
+        String fileReference = component.getValueMap().get(DownloadResource.PN_REFERENCE, String.class);
+        if (StringUtils.isNotEmpty(fileReference) && resolver.getResource(fileReference) != null) {
+            render(component, fileReference);
+        }
+    }
+
+    private boolean isImageComponent(Resource component) {
+        return resourceTypes.contains(component.getResourceType());
+    }
+
+    /**
+     * Requests every width allowed by the component's policy, from the largest to the smallest, or the default width if the policy
+     * doesn't define any.
+     *
+     * @return {@code false} if the servlet sheds load, in which case rendering should stop until the next change
+     */
+    private boolean render(Resource component, String assetPath) {
+        ContentPolicyCache.AllowedPolicy policy = contentPolicyCache.getPolicy(component);
+        String extension = FilenameUtils.getExtension(assetPath).toLowerCase(Locale.ROOT);
+        if (!EXTENSIONS.contains(extension)) {
+            extension = DEFAULT_EXTENSION;
+        }
+        String base = component.getPath() + '.' + AdaptiveImageServlet.CORE_DEFAULT_SELECTOR;
+        int[] widths = policy.getWidths();
+        if (widths.length == 0) {
+            return request(component.getResourceResolver(), base + '.' + extension + assetPath);
+        }
+        for (int i = widths.length - 1; i >= 0; i--) {
+            StringBuilder uri = new StringBuilder(base).append('.').append(policy.getQuality());
+            TransformationSpec.appendWidthSelector(uri, widths[i]).append('.').append(extension).append(assetPath);
+            if (!request(component.getResourceResolver(), uri.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes an internal request for an image, once as is and once per configured {@code Accept} header, discarding the responses.
+     *
+     * @return {@code false} if the servlet rejected the request because its transformation budget is exhausted
+     */
+    private boolean request(ResourceResolver resolver, String uri) {
+        if (!request(resolver, uri, null)) {
+            return false;
+        }
+        for (String accept : acceptHeaders) {
+            if (!request(resolver, uri, accept)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean request(ResourceResolver resolver, String uri, @Nullable String accept) {
+        HttpServletRequest request = requestResponseFactory.createRequest(HttpConstants.METHOD_GET, uri);
+        if (accept != null) {
+            request = new HttpServletRequestWrapper(request) {
+                @Override
+                public String getHeader(String name) {
+                    return HEADER_ACCEPT.equalsIgnoreCase(name) ? accept : super.getHeader(name);
+                }
+            };
+        }
+        HttpServletResponse response = requestResponseFactory.createResponse(NullOutputStream.NULL_OUTPUT_STREAM);
+        try {
+            requestProcessor.processRequest(request, response, resolver);
+        } catch (ServletException | IOException e) {
+            LOGGER.debug("Cannot prerender {}.", uri, e);
+            return true;
+        }
+        if (response.getStatus() == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+            LOGGER.debug("Image servlet is shedding load; skipping the remaining derivatives of {}.", uri);
+            return false;
+        }
+        LOGGER.debug("Prerendered {} ({}).", uri, response.getStatus());
+        return true;
+    }
+
+    /**
+     * A prerendering job, run with the service user's resource resolver.
+     */
+    @FunctionalInterface
+    private interface Job {
+        void run(@NotNull ResourceResolver resolver);
+    }
+}
@@ -2,6 +2,9 @@ package com.mysite.core.servlets;
 
 import java.awt.*;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import org.apache.commons.imaging.Imaging;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.ValueMap;
@@ -19,15 +22,30 @@ import com.day.cq.dam.api.Rendition;
 class EnhancedRendition {
 
     private static final Logger LOG = LoggerFactory.getLogger(EnhancedRendition.class);
+    private static final Set<String> SNIFFABLE_MIME_TYPES = new HashSet<>(Arrays.asList("image/jpeg", "image/png", "image/gif",
+            "image/webp"));
 
     private Rendition rendition;
     private Dimension dimension;
     private boolean dimensionProcessed = false;
+    private boolean dimensionSniffed = false;
 
     public EnhancedRendition(@NotNull Rendition rendition) {
         this.rendition = rendition;
     }
 
+    /**
+     * Creates a delegate for a rendition whose dimension is already known, e.g. from the {@link RenditionMetadataIndex}.
+     *
+     * @param rendition the rendition
+     * @param dimension the rendition's dimension, {@code null} if it cannot be determined
+     */
+    EnhancedRendition(@NotNull Rendition rendition, @Nullable Dimension dimension) {
+        this.rendition = rendition;
+        this.dimension = dimension;
+        this.dimensionProcessed = true;
+    }
+
     /**
      * Getter for the rendition's dimension.
      *
@@ -56,9 +74,19 @@ class EnhancedRendition {
                     LOG.error("Cannot parse rendition dimensions from metadata", nfex);
                 }
             } else {
-                if (StringUtils.startsWith(rendition.getMimeType(), "image/")
+                if (SNIFFABLE_MIME_TYPES.contains(rendition.getMimeType())) {
+                    // Read the dimensions from the image's header
+                    try (InputStream stream = getStream()) {
+                        dimension = ImageHeaderSniffer.sniff(stream);
+                        dimensionSniffed = dimension != null;
+                    } catch (Exception e) {
+                        LOG.error("Cannot get rendition {} dimension from its header", getName(), e);
+                    }
+                }
+                // e.g. a header the sniffer doesn't support, such as a JPEG whose frame follows a large segment
+                if (dimension == null && StringUtils.startsWith(rendition.getMimeType(), "image/")
                         && rendition.getSize() < Math.pow(AdaptiveImageServlet.DEFAULT_MAX_SIZE, 2)) {
-                    // Try to load image to determine dimensions, if not too large\
+                    // Try to load image to determine dimensions, if not too large
                     try (InputStream stream = getStream()) {
                         dimension = Imaging.getImageSize(stream, getName());
                     } catch (Exception e) {
@@ -71,6 +99,14 @@ class EnhancedRendition {
         return dimension;
     }
 
+    /**
+     * @return {@code true} if the dimension is not stored in the rendition's metadata and had to be read from the rendition's header
+     */
+    boolean isDimensionSniffed() {
+        getDimension();
+        return dimensionSniffed;
+    }
+
     String getMimeType() {
         return rendition.getMimeType();
     }
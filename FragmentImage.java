@@ -0,0 +1,96 @@
+package com.mysite.core.models;
+
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable, precomputed data of an image referenced by a content fragment element, as rendered by the
+ * {@code /apps/mysite/components/imagecontentfragment} component and exported by the fragment image exporter.
+ */
+public final class FragmentImage {
+
+    private final String fileReference;
+    private final String src;
+    private final String srcset;
+    private final String webpSrcset;
+    private final String alt;
+    private final int width;
+    private final int height;
+    private final String mimeType;
+    private final List<String> formats;
+
+    public FragmentImage(@NotNull String fileReference, @NotNull String src, @Nullable String srcset, @Nullable String webpSrcset,
+                         @Nullable String alt, int width, int height, @Nullable String mimeType, @NotNull List<String> formats) {
+        this.fileReference = fileReference;
+        this.src = src;
+        this.srcset = srcset;
+        this.webpSrcset = webpSrcset;
+        this.alt = alt;
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+        this.formats = formats;
+    }
+
+    /**
+     * @return the path of the referenced DAM asset
+     */
+    @NotNull
+    public String getFileReference() {
+        return fileReference;
+    }
+
+    @NotNull
+    public String getSrc() {
+        return src;
+    }
+
+    /**
+     * @return the srcset of the widths allowed by the image component's policy, {@code null} if the policy doesn't define any
+     */
+    @Nullable
+    public String getSrcset() {
+        return srcset;
+    }
+
+    /**
+     * @return the srcset of the image delivered as WebP, {@code null} if the image cannot be converted or has no srcset
+     */
+    @Nullable
+    public String getWebpSrcset() {
+        return webpSrcset;
+    }
+
+    @Nullable
+    public String getAlt() {
+        return alt;
+    }
+
+    /**
+     * @return the width of the original image, {@code 0} if unknown
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the original image, {@code 0} if unknown
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    @Nullable
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return the mime types the image can be delivered as, starting with the original's
+     */
+    @NotNull
+    public List<String> getFormats() {
+        return formats;
+    }
+}
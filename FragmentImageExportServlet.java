@@ -0,0 +1,325 @@
+package com.mysite.core.servlets;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adobe.cq.dam.cfm.ContentFragment;
+import com.adobe.granite.ui.components.ds.ValueMapResource;
+import com.day.cq.dam.api.DamConstants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mysite.core.models.FragmentImage;
+import com.mysite.core.models.impl.FragmentImageResolver;
+import com.mysite.core.models.impl.FragmentImagesImpl;
+import com.mysite.core.models.impl.ImageContentFragmentImpl;
+
+/**
+ * Headless export of the image elements of content fragments, e.g. {@code /content/dam/mysite/fragments.imagefragments.json}. For
+ * every content fragment of the requested folder, or for the requested fragment, the {@code src}, {@code srcset}, dimensions and
+ * formats of every image element are streamed to the response as they are resolved, so the memory used doesn't depend on the number
+ * of fragments. Fragments are paged with the {@value #PARAM_OFFSET} and {@value #PARAM_LIMIT} parameters; {@value #PARAM_DEEP} includes
+ * the fragments of the sub-folders and {@value #PARAM_VARIATION} selects a variation.
+ * <p>
+ * A response with more fragments to export gives the path of its last fragment as {@value #PARAM_CURSOR}. Passed back as the
+ * {@value #PARAM_CURSOR} parameter, the next page resumes the walk right after that fragment, skipping the siblings of its ancestors only,
+ * instead of walking all the previous pages' fragments again as an offset does.
+ * <p>
+ * The image URLs are built and the widths resolved as for the image content fragment component given by the {@value #PARAM_COMPONENT}
+ * parameter, or the configured one.
+ */
+@Component(service = { Servlet.class })
+@Designate(ocd = FragmentImageExportServlet.Config.class)
+@SlingServletResourceTypes(
+        resourceTypes = { "sling/Folder", "sling/OrderedFolder", DamConstants.NT_DAM_ASSET },
+        methods = HttpConstants.METHOD_GET,
+        extensions = "json",
+        selectors = FragmentImageExportServlet.SELECTOR)
+public class FragmentImageExportServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(FragmentImageExportServlet.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    static final String SELECTOR = "imagefragments";
+    static final String PARAM_OFFSET = "offset";
+    static final String PARAM_CURSOR = "cursor";
+    static final String PARAM_LIMIT = "limit";
+    static final String PARAM_DEEP = "deep";
+    static final String PARAM_VARIATION = "variation";
+    static final String PARAM_COMPONENT = "component";
+    private static final String PN_CONTENT_FRAGMENT = "contentFragment";
+    private static final String IMAGE = "/image";
+
+    private int defaultLimit;
+    private int maxLimit;
+    private String componentPath;
+
+    @Reference
+    private FragmentImageResolver fragmentImageResolver;
+
+    @ObjectClassDefinition(name = "MySite - Fragment Image Export Servlet", description = "Exports the image elements of content " +
+            "fragments as JSON")
+    @interface Config {
+
+        @AttributeDefinition(name = "Default page size", description = "Number of fragments exported when no limit is requested")
+        int default_limit() default 20;
+
+        @AttributeDefinition(name = "Maximum page size", description = "Maximum number of fragments exported by a request")
+        int max_limit() default 100;
+
+        @AttributeDefinition(name = "Image content fragment component", description = "Path of the image content fragment component " +
+                "whose image URLs and content policy are used when the request doesn't name one")
+        String component_path() default "";
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        maxLimit = Math.max(1, config.max_limit());
+        defaultLimit = Math.max(1, Math.min(config.default_limit(), maxLimit));
+        componentPath = config.component_path();
+    }
+
+    @Override
+    protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
+        int offset = getIntParameter(request, PARAM_OFFSET, 0);
+        int limit = getIntParameter(request, PARAM_LIMIT, defaultLimit);
+        if (offset < 0 || limit <= 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        limit = Math.min(limit, maxLimit);
+        Resource component = getComponent(request);
+        if (component == null) {
+            LOGGER.warn("No image content fragment component to export the fragments of {} for.", request.getResource().getPath());
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        // the image component the elements are rendered as, at the path ImageContentFragmentImpl gives it
+        Resource imageResource = new ValueMapResource(request.getResourceResolver(), component.getPath() + IMAGE,
+                ImageContentFragmentImpl.RESOURCE_TYPE, ValueMap.EMPTY);
+        String variation = request.getParameter(PARAM_VARIATION);
+        boolean deep = Boolean.parseBoolean(request.getParameter(PARAM_DEEP));
+        String cursor = StringUtils.defaultIfEmpty(request.getParameter(PARAM_CURSOR), null);
+        if (cursor != null && !isCursor(request, cursor, deep)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(response.getWriter())) {
+            json.writeStartObject();
+            json.writeNumberField(PARAM_OFFSET, offset);
+            json.writeNumberField(PARAM_LIMIT, limit);
+            json.writeArrayFieldStart("items");
+            Iterator<Resource> fragments = new FragmentIterator(request.getResource(), deep, cursor);
+            int index = 0;
+            boolean hasMore = false;
+            String last = null;
+            while (fragments.hasNext()) {
+                Resource fragmentResource = fragments.next();
+                if (index++ < offset) {
+                    continue;
+                }
+                if (index > offset + limit) {
+                    hasMore = true;
+                    break;
+                }
+                writeFragment(json, fragmentResource, imageResource, variation);
+                last = fragmentResource.getPath();
+                // hand each fragment to the client as soon as it's written
+                json.flush();
+            }
+            json.writeEndArray();
+            json.writeBooleanField("hasMore", hasMore);
+            if (hasMore && last != null) {
+                json.writeStringField(PARAM_CURSOR, last);
+            }
+            json.writeEndObject();
+        }
+    }
+
+    private void writeFragment(JsonGenerator json, Resource fragmentResource, Resource imageResource, String variation)
+            throws IOException {
+        ContentFragment fragment = fragmentResource.adaptTo(ContentFragment.class);
+        json.writeStartObject();
+        json.writeStringField("path", fragmentResource.getPath());
+        if (fragment != null) {
+            json.writeStringField("title", fragment.getTitle());
+        }
+        json.writeObjectFieldStart("images");
+        Map<String, FragmentImage> images = fragment != null ?
+                fragmentImageResolver.resolve(imageResource, fragmentResource.getPath(), variation) : Collections.emptyMap();
+        for (Map.Entry<String, FragmentImage> image : images.entrySet()) {
+            json.writeObjectFieldStart(image.getKey());
+            writeImage(json, image.getValue());
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    private void writeImage(JsonGenerator json, FragmentImage image) throws IOException {
+        json.writeStringField("fileReference", image.getFileReference());
+        json.writeStringField("src", image.getSrc());
+        writeOptionalField(json, "srcset", image.getSrcset());
+        writeOptionalField(json, "webpSrcset", image.getWebpSrcset());
+        writeOptionalField(json, "alt", image.getAlt());
+        if (image.getWidth() > 0 && image.getHeight() > 0) {
+            json.writeNumberField("width", image.getWidth());
+            json.writeNumberField("height", image.getHeight());
+        }
+        writeOptionalField(json, "mimeType", image.getMimeType());
+        json.writeArrayFieldStart("formats");
+        for (String format : image.getFormats()) {
+            json.writeString(format);
+        }
+        json.writeEndArray();
+    }
+
+    private void writeOptionalField(JsonGenerator json, String name, @Nullable String value) throws IOException {
+        if (value != null) {
+            json.writeStringField(name, value);
+        }
+    }
+
+    /**
+     * Returns the image content fragment component given by the request, or the configured one.
+     *
+     * @return the component, {@code null} if there's none or it's not an image content fragment component
+     */
+    @Nullable
+    private Resource getComponent(SlingHttpServletRequest request) {
+        String path = StringUtils.defaultIfEmpty(request.getParameter(PARAM_COMPONENT), componentPath);
+        Resource component = StringUtils.isNotEmpty(path) ? request.getResourceResolver().getResource(path) : null;
+        return component != null && component.isResourceType(FragmentImagesImpl.RESOURCE_TYPE) ? component : null;
+    }
+
+    /**
+     * @return {@code true} if the cursor is the path of an existing content fragment exported from the requested resource
+     */
+    private boolean isCursor(SlingHttpServletRequest request, String cursor, boolean deep) {
+        String root = request.getResource().getPath();
+        if (!cursor.startsWith(root + '/') || !deep && cursor.indexOf('/', root.length() + 1) >= 0) {
+            return false;
+        }
+        Resource fragment = request.getResourceResolver().getResource(cursor);
+        return fragment != null && isContentFragment(fragment);
+    }
+
+    private int getIntParameter(SlingHttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return {@code true} if the resource is a content fragment, checked without adapting it
+     */
+    private static boolean isContentFragment(Resource resource) {
+        if (!resource.isResourceType(DamConstants.NT_DAM_ASSET)) {
+            return false;
+        }
+        Resource content = resource.getChild(JcrConstants.JCR_CONTENT);
+        return content != null && content.getValueMap().get(PN_CONTENT_FRAGMENT, Boolean.FALSE);
+    }
+
+    /**
+     * Lazily iterates over the content fragments of a folder, in the folder's order, depth first through the sub-folders if requested,
+     * holding one child iterator per folder level. Resuming after a cursor positions the child iterator of each of the cursor's
+     * ancestors after the next ancestor, without descending into the sub-folders before it.
+     */
+    private static final class FragmentIterator implements Iterator<Resource> {
+
+        private final Deque<Iterator<Resource>> folders = new ArrayDeque<>();
+        private final boolean deep;
+        private Resource next;
+
+        FragmentIterator(Resource root, boolean deep, @Nullable String cursor) {
+            this.deep = deep;
+            if (isContentFragment(root)) {
+                next = root;
+            } else if (cursor == null) {
+                folders.push(root.listChildren());
+            } else {
+                Resource folder = root;
+                for (String name : StringUtils.split(cursor.substring(root.getPath().length()), '/')) {
+                    Iterator<Resource> children = folder.listChildren();
+                    folder = null;
+                    while (children.hasNext() && folder == null) {
+                        Resource child = children.next();
+                        if (name.equals(child.getName())) {
+                            folder = child;
+                        }
+                    }
+                    folders.push(children);
+                    if (folder == null) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !folders.isEmpty()) {
+                Iterator<Resource> children = folders.peek();
+                if (!children.hasNext()) {
+                    folders.pop();
+                    continue;
+                }
+                Resource child = children.next();
+                if (isContentFragment(child)) {
+                    next = child;
+                } else if (deep && !child.isResourceType(DamConstants.NT_DAM_ASSET) &&
+                        !JcrConstants.JCR_CONTENT.equals(child.getName())) {
+                    folders.push(child.listChildren());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Resource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Resource result = next;
+            next = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.mysite.core.models.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adobe.cq.dam.cfm.ContentElement;
+import com.adobe.cq.dam.cfm.ContentFragment;
+import com.adobe.cq.dam.cfm.ContentVariation;
+import com.adobe.cq.dam.cfm.FragmentData;
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.DamConstants;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.mysite.core.models.FragmentImage;
+import com.mysite.core.servlets.AdaptiveImageServlet;
+import com.mysite.core.servlets.ContentPolicyCache;
+import com.mysite.core.servlets.ImageFormatNegotiator;
+import com.mysite.core.servlets.TransformationSpec;
+
+/**
+ * Resolves the images of all the image elements of a content fragment in one pass: each referenced DAM asset is looked up once, the
+ * image component's content policy is resolved once, and the image URLs are built for the {@link AdaptiveImageServlet}. The result is
+ * cached per fragment version and invalidated when a referenced asset or a content policy changes. The cached images are shared by all
+ * users: a fragment whose references aren't all readable by the user resolving it isn't cached, and the images returned from the cache
+ * are limited to the assets the requesting user can read, e.g. on author or below closed user groups.
+ */
+@Component(
+        service = { FragmentImageResolver.class, ResourceChangeListener.class },
+        property = {
+                ResourceChangeListener.PATHS + "=/content/dam",
+                ResourceChangeListener.PATHS + "=/conf",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        })
+@Designate(ocd = FragmentImageResolver.Config.class)
+public class FragmentImageResolver implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FragmentImageResolver.class);
+    /**
+     * Elements whose name contains this string reference an image.
+     */
+    public static final String IMAGE_ELEMENT = "image";
+    private static final String CONF_ROOT = "/conf";
+    private static final String WEBP_EXTENSION = "webp";
+    private static final String DEFAULT_EXTENSION = "jpeg";
+    private static final List<String> EXTENSIONS = Arrays.asList("jpg", "jpeg", "png", "gif", "svg", "webp", "avif");
+    private static final List<String> WEBP_SOURCES = Arrays.asList("image/jpeg", "image/png");
+
+    private Cache<String, ResolvedFragment> fragments = CacheBuilder.newBuilder().build();
+    private ReferenceIndex references = new ReferenceIndex();
+    /**
+     * Incremented by every change, so that images resolved while a change is being handled aren't left cached after the invalidation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Reference
+    private ContentPolicyCache contentPolicyCache;
+
+    @ObjectClassDefinition(name = "MySite - Fragment Image Resolver", description = "Caches the images of the content fragments' image " +
+            "elements")
+    @interface Config {
+
+        @AttributeDefinition(name = "Maximum fragments", description = "Maximum number of fragment versions whose images are cached")
+        long max_fragments() default 1000;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        ReferenceIndex index = new ReferenceIndex();
+        fragments = CacheBuilder.newBuilder()
+                .maximumSize(config.max_fragments())
+                .removalListener((RemovalListener<String, ResolvedFragment>) removal -> {
+                    // a replaced entry's key is still cached, with the references of the same fragment version
+                    if (removal.getCause() != RemovalCause.REPLACED) {
+                        index.remove(removal.getKey(), removal.getValue().references);
+                    }
+                })
+                .build();
+        references = index;
+    }
+
+    /**
+     * Returns the images of all the image elements of a content fragment.
+     *
+     * @param imageResource the image component resource the images are rendered through; its path is the base of the image URLs and
+     *                      its content policy defines the widths of the srcsets
+     * @param fragmentPath  the content fragment's path
+     * @param variationName the variation to read the elements from, {@code null} for the master variation
+     * @return the images, by element name, in the fragment's element order
+     */
+    @NotNull
+    public Map<String, FragmentImage> resolve(@NotNull Resource imageResource, @NotNull String fragmentPath,
+                                              @Nullable String variationName) {
+        ResourceResolver resolver = imageResource.getResourceResolver();
+        Resource fragmentResource = resolver.getResource(fragmentPath);
+        if (fragmentResource == null) {
+            LOGGER.debug("Content fragment {} does not exist.", fragmentPath);
+            return Collections.emptyMap();
+        }
+        Asset fragmentAsset = fragmentResource.adaptTo(Asset.class);
+        long lastModified = fragmentAsset != null ? fragmentAsset.getLastModified() : 0;
+        String key = fragmentPath + '|' + lastModified + '|' + StringUtils.defaultString(variationName) + '|' + imageResource.getPath();
+        ResolvedFragment resolved = fragments.getIfPresent(key);
+        if (resolved != null) {
+            return getReadableImages(resolver, resolved.images);
+        }
+        long loadGeneration = generation.get();
+        resolved = load(imageResource, fragmentResource, variationName);
+        if (resolved.complete) {
+            references.add(key, resolved.references);
+            fragments.put(key, resolved);
+            if (generation.get() != loadGeneration) {
+                // a change handled while loading may have been looked up before the key was indexed
+                fragments.invalidate(key);
+            }
+        }
+        return resolved.images;
+    }
+
+    /**
+     * Leaves out the cached images of the assets the requesting user cannot read.
+     */
+    private Map<String, FragmentImage> getReadableImages(ResourceResolver resolver, Map<String, FragmentImage> images) {
+        Map<String, Boolean> readable = new HashMap<>();
+        for (FragmentImage image : images.values()) {
+            readable.computeIfAbsent(image.getFileReference(), reference -> resolver.getResource(reference) != null);
+        }
+        if (!readable.containsValue(Boolean.FALSE)) {
+            return images;
+        }
+        Map<String, FragmentImage> readableImages = new LinkedHashMap<>();
+        for (Map.Entry<String, FragmentImage> image : images.entrySet()) {
+            if (readable.get(image.getValue().getFileReference())) {
+                readableImages.put(image.getKey(), image.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(readableImages);
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        generation.incrementAndGet();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (path.startsWith(CONF_ROOT)) {
+                LOGGER.debug("Content policies changed, invalidating {} cached fragments.", fragments.size());
+                fragments.invalidateAll();
+                return;
+            }
+            fragments.invalidateAll(references.getAffectedKeys(path));
+        }
+    }
+
+    private ResolvedFragment load(Resource imageResource, Resource fragmentResource, String variationName) {
+        Set<String> references = new HashSet<>();
+        references.add(fragmentResource.getPath());
+        ContentFragment fragment = fragmentResource.adaptTo(ContentFragment.class);
+        if (fragment == null) {
+            LOGGER.debug("Resource {} is not a content fragment.", fragmentResource.getPath());
+            return new ResolvedFragment(Collections.emptyMap(), references, true);
+        }
+        ContentPolicyCache.AllowedPolicy policy = contentPolicyCache.getPolicy(imageResource);
+        int[] widths = policy.getWidths();
+        ResourceResolver resolver = imageResource.getResourceResolver();
+        Map<String, FragmentImage> byReference = new HashMap<>();
+        Map<String, FragmentImage> images = new LinkedHashMap<>();
+        boolean complete = true;
+        Iterator<ContentElement> elements = fragment.getElements();
+        while (elements.hasNext()) {
+            ContentElement element = elements.next();
+            if (!element.getName().contains(IMAGE_ELEMENT)) {
+                continue;
+            }
+            String reference = getReference(element, variationName);
+            if (StringUtils.isEmpty(reference)) {
+                continue;
+            }
+            // several elements may reference the same asset
+            if (!byReference.containsKey(reference)) {
+                Resource assetResource = resolver.getResource(reference);
+                // another user may be able to read it
+                complete &= assetResource != null;
+                byReference.put(reference, createImage(assetResource, imageResource.getPath(), reference, policy.getQuality(), widths));
+                references.add(reference);
+            }
+            FragmentImage image = byReference.get(reference);
+            if (image != null) {
+                images.put(element.getName(), image);
+            }
+        }
+        LOGGER.debug("Resolved {} images of content fragment {}.", images.size(), fragmentResource.getPath());
+        return new ResolvedFragment(Collections.unmodifiableMap(images), references, complete);
+    }
+
+    @Nullable
+    private String getReference(ContentElement element, String variationName) {
+        FragmentData data = element.getValue();
+        if (StringUtils.isNotEmpty(variationName)) {
+            ContentVariation variation = element.getVariation(variationName);
+            if (variation != null) {
+                data = variation.getValue();
+            }
+        }
+        Object value = data != null ? data.getValue() : null;
+        return value != null ? value.toString() : null;
+    }
+
+    @Nullable
+    private FragmentImage createImage(@Nullable Resource assetResource, String imagePath, String reference, int quality, int[] widths) {
+        Asset asset = assetResource != null ? assetResource.adaptTo(Asset.class) : null;
+        if (asset == null) {
+            LOGGER.debug("Image reference {} is not an asset.", reference);
+            return null;
+        }
+        String extension = FilenameUtils.getExtension(reference).toLowerCase(Locale.ROOT);
+        if (!EXTENSIONS.contains(extension)) {
+            extension = DEFAULT_EXTENSION;
+        }
+        String base = imagePath + '.' + AdaptiveImageServlet.CORE_DEFAULT_SELECTOR;
+        String src = base + '.' + extension + reference;
+        String qualityBase = base + '.' + quality;
+        String srcset = buildSrcset(qualityBase, extension, reference, widths);
+        String mimeType = asset.getMimeType();
+        // without an encoder, the image servlet would deliver the .webp URLs in the default format
+        boolean webp = WEBP_SOURCES.contains(mimeType) && ImageFormatNegotiator.canEncode(ImageFormatNegotiator.MIME_WEBP);
+        String webpSrcset = webp ? buildSrcset(qualityBase, WEBP_EXTENSION, reference, widths) : null;
+        List<String> formats = mimeType == null ? Collections.emptyList() : webp ?
+                Collections.unmodifiableList(Arrays.asList(mimeType, ImageFormatNegotiator.MIME_WEBP)) :
+                Collections.singletonList(mimeType);
+        String alt = StringUtils.defaultIfEmpty(asset.getMetadataValue(DamConstants.DC_DESCRIPTION),
+                StringUtils.defaultIfEmpty(asset.getMetadataValue(DamConstants.DC_TITLE), null));
+        int width = getDimension(asset.getMetadataValue(DamConstants.TIFF_IMAGEWIDTH));
+        int height = getDimension(asset.getMetadataValue(DamConstants.TIFF_IMAGELENGTH));
+        return new FragmentImage(reference, src, srcset, webpSrcset, alt, width, height, mimeType, formats);
+    }
+
+    /**
+     * Builds a srcset with the same selectors as the {@link AdaptiveImageServlet} parses, e.g.
+     * {@code /path/image.coreimg.82.640.jpeg/content/dam/image.jpg 640w}.
+     */
+    @Nullable
+    private String buildSrcset(String qualityBase, String extension, String reference, int[] widths) {
+        if (widths.length == 0) {
+            return null;
+        }
+        StringBuilder srcset = new StringBuilder(widths.length * (qualityBase.length() + reference.length() + 16));
+        for (int width : widths) {
+            if (srcset.length() > 0) {
+                srcset.append(',');
+            }
+            TransformationSpec.appendWidthSelector(srcset.append(qualityBase), width).append('.').append(extension).append(reference)
+                    .append(' ').append(width).append('w');
+        }
+        return srcset.toString();
+    }
+
+    private int getDimension(@Nullable String value) {
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                LOGGER.debug("Invalid image dimension {}.", value);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The images of a fragment version, along with the paths they were resolved from and whether all of them were readable.
+     */
+    private static final class ResolvedFragment {
+
+        private final Map<String, FragmentImage> images;
+        private final Set<String> references;
+        private final boolean complete;
+
+        ResolvedFragment(Map<String, FragmentImage> images, Set<String> references, boolean complete) {
+            this.images = images;
+            this.references = references;
+            this.complete = complete;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.mysite.core.models;
+
+import java.util.Map;
+import org.apache.sling.api.resource.Resource;
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Defines the {@code FragmentImages} Sling Model used for the {@code /apps/mysite/components/imagecontentfragment} component: the images
+ * of all the image elements of the component's content fragment, resolved in one pass.
+ */
+@ConsumerType
+public interface FragmentImages {
+
+    /**
+     * Getter for the images of the fragment's image elements.
+     *
+     * @return the images, by element name; elements without a valid image reference are left out
+     */
+    default Map<String, FragmentImage> getImages() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Getter for the synthetic image component resources the fragment's images are rendered through.
+     *
+     * @return the resources, by element name; elements without a valid image reference are left out
+     */
+    default Map<String, Resource> getImageResources() {
+        throw new UnsupportedOperationException();
+    }
+}
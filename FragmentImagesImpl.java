@@ -0,0 +1,77 @@
+package com.mysite.core.models.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+
+import com.mysite.core.models.FragmentImage;
+import com.mysite.core.models.FragmentImages;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
+import org.apache.sling.models.annotations.injectorspecific.SlingObject;
+import org.apache.sling.models.annotations.injectorspecific.ValueMapValue;
+import com.adobe.cq.wcm.core.components.models.contentfragment.ContentFragment;
+import com.adobe.granite.ui.components.ds.ValueMapResource;
+import com.day.cq.commons.DownloadResource;
+
+import lombok.Getter;
+
+@Model(adaptables = SlingHttpServletRequest.class, adapters = {FragmentImages.class}, resourceType = FragmentImagesImpl.RESOURCE_TYPE)
+public class FragmentImagesImpl implements FragmentImages {
+
+    public static final String RESOURCE_TYPE = "mysite/components/imagecontentfragment";
+    private static final String IMAGE = "/image";
+
+    @SlingObject
+    private ResourceResolver resourceResolver;
+
+    @SlingObject
+    protected Resource resource;
+
+    @ValueMapValue(name = ContentFragment.PN_PATH, injectionStrategy = InjectionStrategy.OPTIONAL)
+    private String fragmentPath;
+
+    @ValueMapValue(name = ContentFragment.PN_VARIATION_NAME, injectionStrategy = InjectionStrategy.OPTIONAL)
+    private String variationName;
+
+    @OSGiService
+    private FragmentImageResolver fragmentImageResolver;
+
+    @Getter
+    private Map<String, FragmentImage> images = Collections.emptyMap();
+
+    @Getter
+    private Map<String, Resource> imageResources = Collections.emptyMap();
+
+    @PostConstruct
+    private void initModel() {
+        if (StringUtils.isNotEmpty(fragmentPath)) {
+            // the image component the elements are rendered as, at the path ImageContentFragmentImpl gives it
+            Resource imageResource = new ValueMapResource(resourceResolver, resource.getPath() + IMAGE,
+                    ImageContentFragmentImpl.RESOURCE_TYPE, ValueMap.EMPTY);
+            images = fragmentImageResolver.resolve(imageResource, fragmentPath, variationName);
+            imageResources = new LinkedHashMap<>();
+            for (Map.Entry<String, FragmentImage> image : images.entrySet()) {
+                imageResources.put(image.getKey(), createSyntheticResource(image.getValue().getFileReference(), imageResource.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Creates the image component resource an element's image is rendered through, as {@link ImageContentFragmentImpl} does.
+     */
+    private Resource createSyntheticResource(String imagePath, String path) {
+        ValueMap properties = new ValueMapDecorator(new HashMap<>());
+        properties.put(DownloadResource.PN_REFERENCE, imagePath);
+        return new ValueMapResource(resourceResolver, path, ImageContentFragmentImpl.RESOURCE_TYPE, properties);
+    }
+}
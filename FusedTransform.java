@@ -0,0 +1,118 @@
+package com.mysite.core.servlets;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Applies an image component's rotation and flips in a single pass: the operations are composed into one {@link AffineTransform} and
+ * the source raster is drawn once, at its own scale, into a raster of the rotated size. The crop is applied before, either while
+ * decoding or as a view on the decoded raster. The downscale to the requested width is left to the {@link ParallelResampler}, whose
+ * filter covers every source pixel whatever the scale factor, where a bicubic {@code drawImage} only samples a 4x4 neighbourhood and
+ * aliases once it shrinks by more than 2x.
+ */
+final class FusedTransform {
+
+    private FusedTransform() {
+    }
+
+    /**
+     * Computes the size of a raster after rotating it, the canvas being enlarged to hold the whole rotated raster.
+     *
+     * @param width         the raster's width
+     * @param height        the raster's height
+     * @param rotationAngle the clockwise rotation, in degrees
+     * @return the rotated size
+     */
+    @NotNull
+    static Dimension getRotatedSize(int width, int height, int rotationAngle) {
+        if (rotationAngle % 180 == 0) {
+            return new Dimension(width, height);
+        }
+        if (rotationAngle % 90 == 0) {
+            return new Dimension(height, width);
+        }
+        double radians = Math.toRadians(rotationAngle);
+        double sin = Math.abs(Math.sin(radians));
+        double cos = Math.abs(Math.cos(radians));
+        return new Dimension((int) Math.ceil(width * cos + height * sin), (int) Math.ceil(width * sin + height * cos));
+    }
+
+    /**
+     * Computes the size of the output for a source raster, only ever scaling down.
+     *
+     * @param width         the source raster's width
+     * @param height        the source raster's height
+     * @param rotationAngle the clockwise rotation, in degrees
+     * @param targetWidth   the requested width, {@code 0} if the image is not resized
+     * @return the output's size
+     */
+    @NotNull
+    static Dimension getOutputSize(int width, int height, int rotationAngle, int targetWidth) {
+        Dimension rotated = getRotatedSize(width, height, rotationAngle);
+        if (targetWidth <= 0 || targetWidth >= rotated.width) {
+            return rotated;
+        }
+        return new Dimension(targetWidth, Math.max(1, (int) ((double) targetWidth / rotated.width * rotated.height)));
+    }
+
+    /**
+     * Renders the rotated and flipped source into a new raster of the rotated size.
+     *
+     * @param source           the source raster, already cropped
+     * @param rotationAngle    the clockwise rotation, in degrees
+     * @param flipHorizontally whether to mirror the rotated image horizontally
+     * @param flipVertically   whether to mirror the rotated image vertically
+     * @param lease            the lease the output raster's buffer is taken from
+     * @return the output raster, or the source itself if it is neither rotated nor flipped
+     */
+    @NotNull
+    static BufferedImage render(@NotNull BufferedImage source, int rotationAngle, boolean flipHorizontally, boolean flipVertically,
+                                @NotNull TransformationBudget.Lease lease) {
+        if (rotationAngle % 360 == 0 && !flipHorizontally && !flipVertically) {
+            return source;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Dimension rotated = getRotatedSize(width, height, rotationAngle);
+        boolean rightAngle = rotationAngle % 90 == 0;
+
+        // the last operation added to the transform is the first one applied to the source's pixels
+        AffineTransform transform = new AffineTransform();
+        if (flipHorizontally) {
+            transform.translate(rotated.width, 0);
+            transform.scale(-1, 1);
+        }
+        if (flipVertically) {
+            transform.translate(0, rotated.height);
+            transform.scale(1, -1);
+        }
+        if (rotationAngle % 360 != 0) {
+            transform.translate(rotated.width / 2.0d, rotated.height / 2.0d);
+            transform.rotate(Math.toRadians(rotationAngle));
+            transform.translate(-width / 2.0d, -height / 2.0d);
+        }
+
+        // corners uncovered by a rotation stay transparent; encoders without alpha flatten them to white
+        boolean alpha = source.getColorModel().hasAlpha() || !rightAngle;
+        BufferedImage destination = lease.createImage(rotated.width, rotated.height, alpha);
+        // pooled buffers hold the pixels of a previous image
+        Arrays.fill(((DataBufferInt) destination.getRaster().getDataBuffer()).getData(), 0, rotated.width * rotated.height, 0);
+        Graphics2D graphics = destination.createGraphics();
+        try {
+            // right angle rotations and flips map pixels one to one and don't need any interpolation
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, !rightAngle ?
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return destination;
+    }
+}
@@ -11,12 +11,15 @@ import org.apache.sling.models.annotations.DefaultInjectionStrategy;
 import org.apache.sling.models.annotations.Exporter;
 import org.apache.sling.models.annotations.Model;
 import org.apache.sling.models.annotations.Via;
+import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
 import org.apache.sling.models.annotations.injectorspecific.Self;
 import org.apache.sling.models.annotations.injectorspecific.SlingObject;
 import org.apache.sling.models.annotations.via.ResourceSuperType;
 import org.apache.sling.servlets.post.SlingPostConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.mysite.core.servlets.ImageFormatNegotiator;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
@@ -30,6 +33,7 @@ public class ImageDelegate implements Image {
     public static final String HTTPS = "https://";
     public static final String PN_DISPLAY_SIZES = "sizes";
     public static final String WIDTH = "{.width}";
+    public static final String WEBP_EXTENSION = "webp";
 
     @SlingObject
     private ResourceResolver resourceResolver;
@@ -37,6 +41,9 @@ public class ImageDelegate implements Image {
     @SlingObject
     protected Resource resource;
 
+    @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private SrcsetCache srcsetCache;
+
     @Self
     @Via(type = ResourceSuperType.class)
     @Delegate(excludes = DelegationExclusion.class)
@@ -44,35 +51,86 @@ public class ImageDelegate implements Image {
 
     @Override
     public String getSrc() {
-        return prepareSuffix(image.getSrc());
+        String src = image.getSrc();
+        String fileReference = image.getFileReference();
+        if (srcsetCache == null || src == null || StringUtils.isEmpty(fileReference)) {
+            return prepareSuffix(src);
+        }
+        return srcsetCache.getSrc(fileReference, src, () -> prepareSuffix(src));
     }
 
     @Override
     public String getSrcset() {
+        return buildSrcset(null);
+    }
+
+    /**
+     * Returns the srcset of the image delivered as WebP, e.g. for a {@code <source type="image/webp">} element. Clients that only
+     * accept other formats get the same images through the regular {@link #getSrcset()}, as the image servlet negotiates the format.
+     *
+     * @return the WebP srcset, or {@code null} if the image doesn't have a srcset or no WebP encoder is installed, in which case the
+     * image servlet would deliver the {@code .webp} URLs in the default format
+     */
+    public String getWebpSrcset() {
+        if (!ImageFormatNegotiator.canEncode(ImageFormatNegotiator.MIME_WEBP)) {
+            return null;
+        }
+        return buildSrcset(WEBP_EXTENSION);
+    }
+
+    private String buildSrcset(String extension) {
         int[] widthsArray = image.getWidths();
         String srcUritemplate = image.getSrcUriTemplate();
-        String[] srcsetArray = new String[widthsArray.length];
         if (widthsArray.length > 0 && srcUritemplate != null) {
-            String srcUriTemplateDecoded = "";
-            try {
-                srcUriTemplateDecoded = prepareSuffix(URLDecoder.decode(srcUritemplate, StandardCharsets.UTF_8.name()));
-            } catch (UnsupportedEncodingException e) {
-                LOGGER.error("Character Decoding failed for {}", resource.getPath());
-            }
-            if (srcUriTemplateDecoded.contains(WIDTH)) {
-                for (int i = 0; i < widthsArray.length; i++) {
-                    if (srcUriTemplateDecoded.contains("="+WIDTH)) {
-                        srcsetArray[i] = srcUriTemplateDecoded.replace(WIDTH, String.format("%s", widthsArray[i])) + " " + widthsArray[i] + "w";
-                    } else {
-                        srcsetArray[i] = srcUriTemplateDecoded.replace(WIDTH, String.format(".%s", widthsArray[i])) + " " + widthsArray[i] + "w";
-                    }
-                }
-                return StringUtils.join(srcsetArray, ',');
+            String fileReference = image.getFileReference();
+            if (srcsetCache == null || StringUtils.isEmpty(fileReference)) {
+                SrcUriTemplate template = compileSrcUriTemplate(srcUritemplate, extension);
+                return template != null ? template.toSrcset(widthsArray) : null;
             }
+            return srcsetCache.getSrcset(fileReference, srcUritemplate, extension, widthsArray,
+                    () -> compileSrcUriTemplate(srcUritemplate, extension));
         }
         return null;
     }
 
+    /**
+     * Decodes the source URI template, points its suffix to the referenced asset and compiles it.
+     *
+     * @param extension the extension to render the images with, {@code null} to keep the template's one
+     * @return the compiled template, or {@code null} if the template has no width placeholder or its extension cannot be replaced
+     */
+    private SrcUriTemplate compileSrcUriTemplate(String srcUritemplate, String extension) {
+        String srcUriTemplateDecoded = "";
+        try {
+            srcUriTemplateDecoded = prepareSuffix(URLDecoder.decode(srcUritemplate, StandardCharsets.UTF_8.name()));
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.error("Character Decoding failed for {}", resource.getPath());
+        }
+        if (srcUriTemplateDecoded.contains(WIDTH) && extension != null) {
+            srcUriTemplateDecoded = replaceExtension(srcUriTemplateDecoded, extension);
+            if (srcUriTemplateDecoded == null) {
+                return null;
+            }
+        }
+        return SrcUriTemplate.compile(srcUriTemplateDecoded);
+    }
+
+    /**
+     * Replaces the request extension following the width placeholder of a selector based URI template
+     * ({@code /path/image.coreimg.82{.width}.jpeg/...}).
+     */
+    private String replaceExtension(String srcUriTemplate, String extension) {
+        int widthEnd = srcUriTemplate.indexOf(WIDTH) + WIDTH.length();
+        if (srcUriTemplate.contains("=" + WIDTH) || widthEnd >= srcUriTemplate.length() || srcUriTemplate.charAt(widthEnd) != '.') {
+            return null;
+        }
+        int extensionEnd = srcUriTemplate.indexOf(SlingPostConstants.DEFAULT_CREATE_SUFFIX, widthEnd);
+        if (extensionEnd < 0) {
+            extensionEnd = srcUriTemplate.length();
+        }
+        return srcUriTemplate.substring(0, widthEnd + 1) + extension + srcUriTemplate.substring(extensionEnd);
+    }
+
     private String prepareSuffix(String imageSrc) {
         if(StringUtils.isNotEmpty(imageSrc) && !StringUtils.containsIgnoreCase(imageSrc, CONTENT_DAM_PATH)) {
             int endIndex = imageSrc.lastIndexOf(SlingPostConstants.DEFAULT_CREATE_SUFFIX);
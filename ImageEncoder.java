@@ -0,0 +1,224 @@
+package com.mysite.core.servlets;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes images straight into an output stream. Encoded bytes are handed to the output through a fixed-size, pooled buffer as the
+ * writer produces them, so clients receive the first bands of the image while the rest is still being encoded.
+ */
+final class ImageEncoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageEncoder.class);
+    private static final String MIME_JPEG = "image/jpeg";
+    /**
+     * The formats whose writers take the quality as their lossy compression's quality.
+     */
+    private static final List<String> LOSSY_TYPES = Arrays.asList(MIME_JPEG, ImageFormatNegotiator.MIME_WEBP,
+            ImageFormatNegotiator.MIME_AVIF);
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int POOL_SIZE = 64;
+    private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private ImageEncoder() {
+    }
+
+    /**
+     * Encodes the image.
+     *
+     * @param image       the image
+     * @param mimeType    the output mime type
+     * @param quality     the encoding quality, between 0 and 1, for formats supporting lossy compression
+     * @param progressive whether to encode the image progressively, for formats supporting it
+     * @param output      the output stream; it is flushed but not closed
+     * @param lease       the lease the opaque copy of a transparent image encoded as JPEG is taken from
+     * @return {@code true} if the image was encoded, {@code false} if there's no writer for the given mime type
+     * @throws IOException if the image cannot be encoded or written
+     */
+    static boolean encode(@NotNull BufferedImage image, @NotNull String mimeType, double quality, boolean progressive,
+                          @NotNull OutputStream output, @NotNull TransformationBudget.Lease lease) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(mimeType);
+        if (!writers.hasNext()) {
+            return false;
+        }
+        ImageWriter writer = writers.next();
+        boolean jpeg = MIME_JPEG.equals(mimeType);
+        BufferedImage source = jpeg ? withoutAlpha(image, lease) : image;
+        try (PooledBufferOutputStream buffered = new PooledBufferOutputStream(output);
+             StreamingImageOutputStream imageOutput = new StreamingImageOutputStream(buffered, jpeg)) {
+            writer.setOutput(imageOutput);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed() && LOSSY_TYPES.contains(mimeType)) {
+                setQuality(param, quality);
+            }
+            if (progressive && param.canWriteProgressive()) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            writer.write(null, new IIOImage(source, null, null), param);
+            imageOutput.flush();
+        } finally {
+            writer.dispose();
+            if (source != image) {
+                lease.release(source);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the quality of a lossy compression. Writers supporting several compression types, e.g. WebP's lossy and lossless ones, have
+     * no type set in explicit mode, and ignore the quality or fail until one is chosen.
+     */
+    private static void setQuality(ImageWriteParam param, double quality) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        String[] types = param.getCompressionTypes();
+        if (types != null && types.length > 0 && param.getCompressionType() == null) {
+            String type = types[0];
+            for (String candidate : types) {
+                if (!candidate.toLowerCase(Locale.ROOT).contains("lossless")) {
+                    type = candidate;
+                    break;
+                }
+            }
+            param.setCompressionType(type);
+        }
+        param.setCompressionQuality((float) quality);
+    }
+
+    /**
+     * JPEG has no alpha channel; transparent pixels are composed on a white background, like the servlet does for transparent PNGs. The
+     * opaque copy is reserved in the transformation budget and taken from the lease's pixel buffers.
+     */
+    private static BufferedImage withoutAlpha(BufferedImage image, TransformationBudget.Lease lease) throws IOException {
+        if (!image.getColorModel().hasAlpha()) {
+            return image;
+        }
+        lease.reserve(image.getWidth(), image.getHeight());
+        BufferedImage opaque = lease.createImage(image.getWidth(), image.getHeight(), false);
+        Graphics2D graphics = opaque.createGraphics();
+        try {
+            // pooled buffers are not cleared
+            graphics.setColor(Color.white);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return opaque;
+    }
+
+    /**
+     * An image output stream that, for formats written strictly forward, releases its cached bytes to the underlying stream after each
+     * write; formats that seek back (e.g. PNG chunk lengths) release them whenever the writer flushes a chunk.
+     */
+    private static final class StreamingImageOutputStream extends MemoryCacheImageOutputStream {
+
+        private final boolean forwardOnly;
+
+        StreamingImageOutputStream(OutputStream stream, boolean forwardOnly) {
+            super(stream);
+            this.forwardOnly = forwardOnly;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            release();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            release();
+        }
+
+        private void release() throws IOException {
+            if (forwardOnly && getStreamPosition() - getFlushedPosition() >= BUFFER_SIZE) {
+                flushBefore(getStreamPosition());
+            }
+        }
+    }
+
+    /**
+     * Coalesces the encoder's small writes into fixed-size chunks, using buffers from a shared pool.
+     */
+    private static final class PooledBufferOutputStream extends OutputStream {
+
+        private final OutputStream output;
+        private byte[] buffer;
+        private int count;
+
+        PooledBufferOutputStream(OutputStream output) {
+            this.output = output;
+            byte[] pooled = BUFFERS.poll();
+            this.buffer = pooled != null ? pooled : new byte[BUFFER_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                drain();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer.length) {
+                drain();
+                output.write(b, off, len);
+                return;
+            }
+            if (len > buffer.length - count) {
+                drain();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                if (!BUFFERS.offer(buffer)) {
+                    LOG.trace("Encoder buffer pool is full; dropping buffer.");
+                }
+                buffer = null;
+            }
+        }
+
+        private void drain() throws IOException {
+            if (count > 0) {
+                output.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
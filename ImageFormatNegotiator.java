@@ -0,0 +1,115 @@
+package com.mysite.core.servlets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Chooses the output format of a transformed image from the client's {@code Accept} header. Only formats for which an encoder is
+ * installed in the JVM (a pure Java ImageIO writer plugin) are offered.
+ */
+public class ImageFormatNegotiator {
+
+    static final String MIME_JPEG = "image/jpeg";
+    static final String MIME_PNG = "image/png";
+    public static final String MIME_WEBP = "image/webp";
+    public static final String MIME_AVIF = "image/avif";
+
+    private static final List<String> NEGOTIABLE_TYPES = Arrays.asList(MIME_JPEG, MIME_PNG);
+    /**
+     * Whether an encoder is installed, by mime type. The lookups expire so that a bundle providing an encoder, or removing it, is picked
+     * up without scanning the ImageIO registry on every request.
+     */
+    private static final LoadingCache<String, Boolean> ENCODERS = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build(CacheLoader.from(mimeType -> ImageIO.getImageWritersByMIMEType(mimeType).hasNext()));
+
+    private final List<String> preferences = new ArrayList<>();
+
+    /**
+     * @param preferences the alternative mime types, most preferred first
+     */
+    ImageFormatNegotiator(@NotNull String[] preferences) {
+        for (String preference : preferences) {
+            if (StringUtils.isNotBlank(preference)) {
+                this.preferences.add(preference.trim().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Checks whether the output format of a request for the given mime type is subject to negotiation; if it is, the response varies by
+     * the {@code Accept} header.
+     *
+     * @param requestedType the mime type derived from the request's extension
+     * @return {@code true} if the format is negotiated, {@code false} otherwise
+     */
+    boolean isNegotiable(@NotNull String requestedType) {
+        return !preferences.isEmpty() && NEGOTIABLE_TYPES.contains(requestedType);
+    }
+
+    /**
+     * Negotiates the output format.
+     *
+     * @param requestedType the mime type derived from the request's extension
+     * @param accept        the request's {@code Accept} header
+     * @return the most preferred alternative format explicitly accepted by the client and supported by an installed encoder, or the
+     * requested type if there is none
+     */
+    @NotNull
+    String negotiate(@NotNull String requestedType, @Nullable String accept) {
+        if (StringUtils.isEmpty(accept) || !isNegotiable(requestedType)) {
+            return requestedType;
+        }
+        for (String preference : preferences) {
+            if (accepts(accept, preference) && canEncode(preference)) {
+                return preference;
+            }
+        }
+        return requestedType;
+    }
+
+    /**
+     * Checks whether an encoder is installed for the given mime type. The answer is remembered for a minute, as the bundle providing
+     * the encoder may be installed at any time.
+     *
+     * @param mimeType the mime type
+     * @return {@code true} if images can be encoded to the given mime type, {@code false} otherwise
+     */
+    public static boolean canEncode(@NotNull String mimeType) {
+        return ENCODERS.getUnchecked(mimeType);
+    }
+
+    /**
+     * Only explicitly listed types count as accepted; wildcards such as {@code image/*} are sent by clients that cannot decode every
+     * image format.
+     */
+    private static boolean accepts(String accept, String mimeType) {
+        for (String range : StringUtils.split(accept, ',')) {
+            String[] parts = StringUtils.split(range, ';');
+            if (parts.length == 0 || !mimeType.equalsIgnoreCase(parts[0].trim())) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,218 @@
+package com.mysite.core.servlets;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads the dimension of JPEG, PNG, GIF and WebP images from their headers, without decoding them. At most {@link #MAX_HEADER_BYTES}
+ * are read from the stream, the JPEG segments in front of the frame header being skipped rather than read.
+ */
+final class ImageHeaderSniffer {
+
+    /**
+     * Upper bound of the bytes consumed from the stream; JPEG files carrying large EXIF or ICC segments are given up on past it.
+     */
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final int PREFIX_LENGTH = 30;
+
+    private ImageHeaderSniffer() {
+    }
+
+    /**
+     * Reads the image's dimension from its header.
+     *
+     * @param stream the image's stream, which is left open
+     * @return the dimension, {@code null} if the format is not supported or the header cannot be parsed
+     * @throws IOException if the stream cannot be read
+     */
+    @Nullable
+    static Dimension sniff(@NotNull InputStream stream) throws IOException {
+        BoundedReader reader = new BoundedReader(stream);
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        int length = reader.read(prefix, 2);
+        if (length < 2) {
+            return null;
+        }
+        if ((prefix[0] & 0xff) == 0xff && (prefix[1] & 0xff) == 0xd8) {
+            return sniffJpeg(reader);
+        }
+        length += reader.read(prefix, 2, PREFIX_LENGTH - 2);
+        if (length >= 24 && startsWith(prefix, 0, 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a) && startsWith(prefix, 12, 'I', 'H', 'D', 'R')) {
+            return dimension(int32(prefix, 16), int32(prefix, 20));
+        }
+        if (length >= 10 && (startsWith(prefix, 0, 'G', 'I', 'F', '8', '7', 'a') || startsWith(prefix, 0, 'G', 'I', 'F', '8', '9', 'a'))) {
+            return dimension(int16le(prefix, 6), int16le(prefix, 8));
+        }
+        if (length >= 30 && startsWith(prefix, 0, 'R', 'I', 'F', 'F') && startsWith(prefix, 8, 'W', 'E', 'B', 'P')) {
+            return sniffWebp(prefix);
+        }
+        return null;
+    }
+
+    private static Dimension sniffJpeg(BoundedReader reader) throws IOException {
+        while (true) {
+            int marker = reader.read();
+            if (marker != 0xff) {
+                return null;
+            }
+            // markers may be preceded by any number of fill bytes
+            while (marker == 0xff) {
+                marker = reader.read();
+            }
+            if (marker < 0 || marker == 0xd9 || marker == 0xda) {
+                // end of image or start of scan without a frame header
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // standalone markers don't have a length
+                continue;
+            }
+            int segmentLength = reader.readUnsignedShort();
+            if (segmentLength < 2) {
+                return null;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                // start of frame: sample precision, then height and width
+                reader.read();
+                int height = reader.readUnsignedShort();
+                int width = reader.readUnsignedShort();
+                return dimension(width, height);
+            }
+            if (!reader.skip(segmentLength - 2)) {
+                return null;
+            }
+        }
+    }
+
+    private static Dimension sniffWebp(byte[] prefix) {
+        if (startsWith(prefix, 12, 'V', 'P', '8', ' ')) {
+            // lossy: frame tag, start code, then 14-bit width and height
+            if (startsWith(prefix, 23, 0x9d, 0x01, 0x2a)) {
+                return dimension(int16le(prefix, 26) & 0x3fff, int16le(prefix, 28) & 0x3fff);
+            }
+        } else if (startsWith(prefix, 12, 'V', 'P', '8', 'L')) {
+            // lossless: signature, then 14-bit width - 1 and height - 1
+            if ((prefix[20] & 0xff) == 0x2f) {
+                int bits = (prefix[21] & 0xff) | (prefix[22] & 0xff) << 8 | (prefix[23] & 0xff) << 16 | (prefix[24] & 0xff) << 24;
+                return dimension((bits & 0x3fff) + 1, ((bits >> 14) & 0x3fff) + 1);
+            }
+        } else if (startsWith(prefix, 12, 'V', 'P', '8', 'X')) {
+            // extended: 24-bit canvas width - 1 and height - 1
+            return dimension(int24le(prefix, 24) + 1, int24le(prefix, 27) + 1);
+        }
+        return null;
+    }
+
+    private static Dimension dimension(int width, int height) {
+        return width > 0 && height > 0 ? new Dimension(width, height) : null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if ((bytes[offset + i] & 0xff) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int int32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static int int16le(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int int24le(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16;
+    }
+
+    /**
+     * Reads a stream through a small buffer, refusing to go past {@link #MAX_HEADER_BYTES}.
+     */
+    private static final class BoundedReader {
+
+        private final InputStream stream;
+        private final byte[] buffer = new byte[4096];
+        private int position;
+        private int limit;
+        private int consumed;
+
+        BoundedReader(InputStream stream) {
+            this.stream = stream;
+        }
+
+        int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        int read(byte[] bytes, int length) throws IOException {
+            return read(bytes, 0, length);
+        }
+
+        int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int value = read();
+                if (value < 0) {
+                    break;
+                }
+                bytes[offset + read++] = (byte) value;
+            }
+            return read;
+        }
+
+        int readUnsignedShort() throws IOException {
+            int high = read();
+            int low = read();
+            return high < 0 || low < 0 ? -1 : high << 8 | low;
+        }
+
+        boolean skip(int length) throws IOException {
+            int buffered = Math.min(length, limit - position);
+            position += buffered;
+            long remaining = length - buffered;
+            if (remaining == 0) {
+                return true;
+            }
+            if (consumed + remaining > MAX_HEADER_BYTES) {
+                return false;
+            }
+            while (remaining > 0) {
+                long skipped = stream.skip(remaining);
+                if (skipped <= 0) {
+                    if (stream.read() < 0) {
+                        return false;
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+                consumed += skipped;
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            int length = Math.min(buffer.length, MAX_HEADER_BYTES - consumed);
+            if (length <= 0) {
+                return false;
+            }
+            int read = stream.read(buffer, 0, length);
+            if (read <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            consumed += read;
+            return true;
+        }
+    }
+}
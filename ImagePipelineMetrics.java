@@ -0,0 +1,275 @@
+package com.mysite.core.servlets;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * Latency histograms per stage and counters of the {@link AdaptiveImageServlet}'s image pipeline, exposed through JMX and the
+ * {@link ImagePipelineMetricsServlet}. When disabled, requests get a no-op {@link StageTimer} and nothing is recorded or allocated.
+ */
+@Component(
+        service = { ImagePipelineMetrics.class, ImagePipelineMetricsMBean.class },
+        property = { "jmx.objectname=com.mysite.core:type=ImagePipelineMetrics" })
+@Designate(ocd = ImagePipelineMetrics.Config.class)
+public class ImagePipelineMetrics implements ImagePipelineMetricsMBean {
+
+    /**
+     * The stages of the image pipeline.
+     */
+    enum Stage {
+        /** Picking the rendition to transform or stream. */
+        RESOLVE,
+        /** Determining the dimensions of an asset's renditions. */
+        PROBE,
+        /** Decoding a rendition into a raster. */
+        DECODE,
+        /** Cropping, rotating and flipping. */
+        TRANSFORM,
+        /** Resizing to the requested width. */
+        RESIZE,
+        /** Encoding the transformed image into the response. */
+        ENCODE,
+        /** Streaming stored bytes (renditions or cached derivatives) into the response. */
+        STREAM
+    }
+
+    /**
+     * The counters of the image pipeline.
+     */
+    enum Counter {
+        CACHE_HIT,
+        CACHE_MISS,
+        BYTES_STREAMED,
+        DECODED_PIXELS,
+        ORIGINAL_FALLBACK,
+        COALESCED,
+        COALESCING_TIMEOUT,
+        REJECTED
+    }
+
+    @ObjectClassDefinition(name = "MySite - Image Pipeline Metrics", description = "Records the image servlet's stage latencies and " +
+            "counters")
+    @interface Config {
+
+        @AttributeDefinition(name = "Enabled", description = "Record stage latencies and counters")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Server-Timing header", description = "Debug mode: send each request's stage latencies in a " +
+                "Server-Timing response header")
+        boolean server_timing() default false;
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private volatile boolean enabled;
+    private volatile boolean serverTiming;
+
+    public ImagePipelineMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        enabled = config.enabled();
+        serverTiming = config.server_timing();
+    }
+
+    /**
+     * Creates the timer of a request.
+     *
+     * @return a new timer, or the shared no-op timer if metrics are disabled
+     */
+    @NotNull
+    StageTimer newTimer() {
+        return enabled ? new StageTimer(this, serverTiming) : StageTimer.NOOP;
+    }
+
+    void record(@NotNull Stage stage, long nanos) {
+        if (enabled) {
+            histograms[stage.ordinal()].record(nanos);
+        }
+    }
+
+    void increment(@NotNull Counter counter, long value) {
+        if (enabled) {
+            counters[counter.ordinal()].add(value);
+        }
+    }
+
+    /**
+     * @return a snapshot of all metrics, keyed by stage and counter names
+     */
+    @NotNull
+    Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("enabled", enabled);
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.name().toLowerCase(Locale.ROOT), histograms[stage.ordinal()].toMap());
+        }
+        snapshot.put("stages", stages);
+        Map<String, Long> counterValues = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            counterValues.put(counter.name().toLowerCase(Locale.ROOT), counters[counter.ordinal()].sum());
+        }
+        snapshot.put("counters", counterValues);
+        return snapshot;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public String[] getStageLatencies() {
+        String[] latencies = new String[histograms.length];
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            latencies[stage.ordinal()] = String.format(Locale.ROOT, "%s: count=%d mean=%dus p50=%dus p99=%dus max=%dus",
+                    stage.name().toLowerCase(Locale.ROOT), histogram.getCount(), histogram.getMean(), histogram.getPercentile(0.5),
+                    histogram.getPercentile(0.99), histogram.getMax());
+        }
+        return latencies;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return counters[Counter.CACHE_HIT.ordinal()].sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return counters[Counter.CACHE_MISS.ordinal()].sum();
+    }
+
+    @Override
+    public long getBytesStreamed() {
+        return counters[Counter.BYTES_STREAMED.ordinal()].sum();
+    }
+
+    @Override
+    public long getDecodedPixels() {
+        return counters[Counter.DECODED_PIXELS.ordinal()].sum();
+    }
+
+    @Override
+    public long getOriginalFallbacks() {
+        return counters[Counter.ORIGINAL_FALLBACK.ordinal()].sum();
+    }
+
+    @Override
+    public long getCoalescedRequests() {
+        return counters[Counter.COALESCED.ordinal()].sum();
+    }
+
+    @Override
+    public long getCoalescingTimeouts() {
+        return counters[Counter.COALESCING_TIMEOUT.ordinal()].sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return counters[Counter.REJECTED.ordinal()].sum();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * A lock-free latency histogram with power of two microsecond buckets.
+     */
+    private static final class LatencyHistogram {
+
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.increment();
+            sum.add(micros);
+            max.accumulate(micros);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getMean() {
+            long samples = count.sum();
+            return samples > 0 ? sum.sum() / samples : 0;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return the upper bound, in microseconds, of the bucket holding the given percentile
+         */
+        long getPercentile(double percentile) {
+            long samples = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                samples += buckets.get(i);
+            }
+            long threshold = (long) Math.ceil(samples * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(1L << i, getMax());
+                }
+            }
+            return 0;
+        }
+
+        Map<String, Long> toMap() {
+            Map<String, Long> map = new LinkedHashMap<>();
+            map.put("count", getCount());
+            map.put("meanMicros", getMean());
+            map.put("p50Micros", getPercentile(0.5));
+            map.put("p99Micros", getPercentile(0.99));
+            map.put("maxMicros", getMax());
+            return map;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.mysite.core.servlets;
+
+/**
+ * JMX view on the {@link AdaptiveImageServlet}'s pipeline metrics.
+ */
+public interface ImagePipelineMetricsMBean {
+
+    /**
+     * @return whether metrics are being recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * @return one line per pipeline stage with its count and mean, p50, p99 and maximum latency in microseconds
+     */
+    String[] getStageLatencies();
+
+    /**
+     * @return the number of requests served from the derivative cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return the number of requests not found in the derivative cache
+     */
+    long getCacheMisses();
+
+    /**
+     * @return the number of image bytes written to responses
+     */
+    long getBytesStreamed();
+
+    /**
+     * @return the number of pixels decoded
+     */
+    long getDecodedPixels();
+
+    /**
+     * @return the number of times no rendition matched the requested width and the original was used instead
+     */
+    long getOriginalFallbacks();
+
+    /**
+     * @return the number of requests served with the result of a concurrent identical transformation
+     */
+    long getCoalescedRequests();
+
+    /**
+     * @return the number of requests that gave up waiting for a concurrent identical transformation and performed it by themselves
+     */
+    long getCoalescingTimeouts();
+
+    /**
+     * @return the number of requests rejected because the transformation budget was exhausted
+     */
+    long getRejectedRequests();
+
+    /**
+     * Resets all metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,105 @@
+package com.mysite.core.servlets;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import javax.jcr.RepositoryException;
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Lightweight JSON endpoint exposing the {@link ImagePipelineMetrics}. Anonymous requests are asked to authenticate, and only the
+ * administrators and the members of the configured groups are served the metrics.
+ */
+@Component(service = { Servlet.class }, property = { "sling.auth.requirements=+" + ImagePipelineMetricsServlet.PATH })
+@Designate(ocd = ImagePipelineMetricsServlet.Config.class)
+@SlingServletPaths(ImagePipelineMetricsServlet.PATH)
+public class ImagePipelineMetricsServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImagePipelineMetricsServlet.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static final String PATH = "/bin/mysite/imagepipeline/metrics";
+
+    private List<String> allowedGroups;
+
+    @Reference
+    private ImagePipelineMetrics metrics;
+
+    @ObjectClassDefinition(name = "MySite - Image Pipeline Metrics Servlet", description = "Exposes the image pipeline metrics as JSON")
+    @interface Config {
+
+        @AttributeDefinition(name = "Allowed groups", description = "Groups whose members, besides the administrators, can read the " +
+                "metrics")
+        String[] allowed_groups() default { "administrators" };
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        allowedGroups = Arrays.asList(config.allowed_groups());
+    }
+
+    @Override
+    protected void doGet(@NotNull SlingHttpServletRequest request, @NotNull SlingHttpServletResponse response) throws IOException {
+        if (!isAllowed(request.getResourceResolver())) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        MAPPER.writeValue(response.getWriter(), metrics.snapshot());
+    }
+
+    /**
+     * Checks whether the requesting user is an administrator or a member of one of the allowed groups.
+     */
+    private boolean isAllowed(ResourceResolver resolver) {
+        UserManager userManager = resolver.adaptTo(UserManager.class);
+        String userID = resolver.getUserID();
+        if (userManager == null || userID == null) {
+            return false;
+        }
+        try {
+            Authorizable authorizable = userManager.getAuthorizable(userID);
+            if (authorizable == null || authorizable.isGroup()) {
+                return false;
+            }
+            if (((User) authorizable).isAdmin()) {
+                return true;
+            }
+            Iterator<Group> groups = authorizable.memberOf();
+            while (groups.hasNext()) {
+                if (allowedGroups.contains(groups.next().getID())) {
+                    return true;
+                }
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Cannot read the groups of user {}.", userID, e);
+        }
+        return false;
+    }
+}
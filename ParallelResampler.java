@@ -0,0 +1,312 @@
+package com.mysite.core.servlets;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Separable resampler working on packed ARGB {@code int[]} rows with precomputed {@code float[]} weight tables. The image is first
+ * resampled horizontally into an intermediate raster of the output's width, then vertically into the output; both passes are split
+ * into row bands that run on a fork/join pool when the resampler is asked to run in parallel.
+ */
+final class ParallelResampler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelResampler.class);
+
+    /**
+     * Rows of a band processed by a single task.
+     */
+    private static final int BAND_ROWS = 64;
+
+    /**
+     * The interpolation kernels.
+     */
+    enum Filter {
+        /** Catmull-Rom bicubic kernel, 2 source pixels on each side. */
+        BICUBIC(2.0d) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                if (x < 1.0d) {
+                    return (1.5d * x - 2.5d) * x * x + 1.0d;
+                }
+                if (x < 2.0d) {
+                    return ((-0.5d * x + 2.5d) * x - 4.0d) * x + 2.0d;
+                }
+                return 0.0d;
+            }
+        },
+        /** Lanczos kernel, 3 source pixels on each side. */
+        LANCZOS3(3.0d) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                if (x < 1.0e-6d) {
+                    return 1.0d;
+                }
+                if (x >= 3.0d) {
+                    return 0.0d;
+                }
+                double pi = Math.PI * x;
+                return 3.0d * Math.sin(pi) * Math.sin(pi / 3.0d) / (pi * pi);
+            }
+        };
+
+        private final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        abstract double weight(double x);
+    }
+
+    private final ForkJoinPool pool;
+    private final Filter filter;
+
+    /**
+     * @param parallelism the number of threads resampling the bands of a single image
+     * @param filter      the interpolation kernel
+     */
+    ParallelResampler(int parallelism, @NotNull Filter filter) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.filter = filter;
+    }
+
+    /**
+     * Resamples an image to the given size.
+     *
+     * @param source   the image
+     * @param width    the output's width
+     * @param height   the output's height
+     * @param parallel whether to process the bands on the fork/join pool instead of the calling thread; once the resampler is shut down,
+     *                 the bands are processed on the calling thread anyway
+     * @param lease    the lease the intermediate and output rasters' buffers are taken from
+     * @return the resampled image
+     */
+    @NotNull
+    BufferedImage resample(@NotNull BufferedImage source, int width, int height, boolean parallel,
+                           @NotNull TransformationBudget.Lease lease) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        boolean alpha = source.getColorModel().hasAlpha();
+        Weights horizontal = new Weights(filter, sourceWidth, width);
+        Weights vertical = new Weights(filter, sourceHeight, height);
+        int[] intermediate = lease.acquire(width * sourceHeight);
+        BufferedImage destination = lease.createImage(width, height, alpha);
+        int[] output = ((DataBufferInt) destination.getRaster().getDataBuffer()).getData();
+
+        // packed int rasters are read as they are, anything else is converted to ARGB row by row
+        boolean packed = source.getType() == BufferedImage.TYPE_INT_RGB || source.getType() == BufferedImage.TYPE_INT_ARGB;
+        RecursiveAction horizontalPass = new Band(0, sourceHeight, (from, to) -> {
+            int[] row = new int[sourceWidth];
+            for (int y = from; y < to; y++) {
+                if (packed) {
+                    source.getRaster().getDataElements(0, y, sourceWidth, 1, row);
+                } else {
+                    source.getRGB(0, y, sourceWidth, 1, row, 0, sourceWidth);
+                }
+                resampleLine(row, horizontal, intermediate, y * width, alpha);
+            }
+        });
+        RecursiveAction verticalPass = new Band(0, height, (from, to) -> {
+            float[] accumulator = new float[width * 4];
+            for (int y = from; y < to; y++) {
+                resampleRow(intermediate, width, vertical, y, accumulator, output, alpha);
+            }
+        });
+        run(horizontalPass, parallel);
+        run(verticalPass, parallel);
+        lease.release(intermediate);
+        LOG.debug("Resampled {}x{}px to {}x{}px with {} ({}).", sourceWidth, sourceHeight, width, height, filter,
+                parallel ? "parallel" : "single-threaded");
+        return destination;
+    }
+
+    /**
+     * Stops accepting new images on the pool, letting the images being resampled complete. Images submitted afterwards, e.g. by
+     * requests started before the resampler was replaced, are resampled on their calling thread.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs a pass on the pool, or on the calling thread if it isn't run in parallel or the pool no longer accepts tasks.
+     */
+    private void run(RecursiveAction pass, boolean parallel) {
+        if (parallel && !pool.isShutdown()) {
+            try {
+                pool.invoke(pass);
+                return;
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Resampler is shut down; resampling on the calling thread.");
+            }
+        }
+        pass.invoke();
+    }
+
+    /**
+     * Resamples a row of the source into a row of the intermediate raster, whose colors are premultiplied by their alpha.
+     */
+    private static void resampleLine(int[] input, Weights weights, int[] output, int outputOffset, boolean alpha) {
+        float[] table = weights.table;
+        int taps = weights.taps;
+        for (int i = 0; i < weights.length; i++) {
+            float a = 0;
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            int start = weights.start[i];
+            int w = i * taps;
+            for (int t = 0; t < weights.count[i]; t++, w++) {
+                int pixel = input[start + t];
+                float weight = table[w];
+                if (alpha) {
+                    // premultiply while reading the source, so that transparent pixels don't bleed their color
+                    float pa = (pixel >>> 24) * weight;
+                    a += pa;
+                    r += ((pixel >> 16) & 0xff) * pa / 255f;
+                    g += ((pixel >> 8) & 0xff) * pa / 255f;
+                    b += (pixel & 0xff) * pa / 255f;
+                } else {
+                    a += (pixel >>> 24) * weight;
+                    r += ((pixel >> 16) & 0xff) * weight;
+                    g += ((pixel >> 8) & 0xff) * weight;
+                    b += (pixel & 0xff) * weight;
+                }
+            }
+            output[outputOffset + i] = (alpha ? clamp(a) << 24 : 0xff000000) | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+        }
+    }
+
+    /**
+     * Computes a row of the output from the rows of the intermediate raster, reverting the alpha premultiplication. The contributing
+     * rows are accumulated one after the other, so that the intermediate raster is read sequentially.
+     */
+    private static void resampleRow(int[] intermediate, int width, Weights weights, int y, float[] accumulator, int[] output,
+                                    boolean alpha) {
+        Arrays.fill(accumulator, 0f);
+        int start = weights.start[y];
+        int w = y * weights.taps;
+        for (int t = 0; t < weights.count[y]; t++) {
+            float weight = weights.table[w + t];
+            int offset = (start + t) * width;
+            for (int x = 0, c = 0; x < width; x++, c += 4) {
+                int pixel = intermediate[offset + x];
+                accumulator[c] += (pixel >>> 24) * weight;
+                accumulator[c + 1] += ((pixel >> 16) & 0xff) * weight;
+                accumulator[c + 2] += ((pixel >> 8) & 0xff) * weight;
+                accumulator[c + 3] += (pixel & 0xff) * weight;
+            }
+        }
+        int offset = y * width;
+        for (int x = 0, c = 0; x < width; x++, c += 4) {
+            float a = accumulator[c];
+            float scale = !alpha ? 1f : a > 0.5f ? 255f / a : 0f;
+            output[offset + x] = (alpha ? clamp(a) << 24 : 0xff000000) | clamp(accumulator[c + 1] * scale) << 16 |
+                    clamp(accumulator[c + 2] * scale) << 8 | clamp(accumulator[c + 3] * scale);
+        }
+    }
+
+    private static int clamp(float value) {
+        int rounded = (int) (value + 0.5f);
+        return rounded < 0 ? 0 : Math.min(rounded, 255);
+    }
+
+    /**
+     * The normalized weights of the source pixels contributing to each output pixel of a line.
+     */
+    private static final class Weights {
+
+        final int length;
+        final int taps;
+        final int[] start;
+        final int[] count;
+        final float[] table;
+
+        Weights(Filter filter, int sourceLength, int length) {
+            this.length = length;
+            double scale = (double) length / sourceLength;
+            // when downscaling, the kernel is stretched over the source pixels covered by an output pixel
+            double stretch = Math.max(1.0d, 1.0d / scale);
+            double support = filter.support * stretch;
+            this.taps = (int) Math.ceil(support * 2) + 2;
+            this.start = new int[length];
+            this.count = new int[length];
+            this.table = new float[length * taps];
+            for (int i = 0; i < length; i++) {
+                double center = (i + 0.5d) / scale - 0.5d;
+                int first = Math.max(0, (int) Math.floor(center - support));
+                int last = Math.min(sourceLength - 1, (int) Math.ceil(center + support));
+                int n = Math.min(taps, last - first + 1);
+                double sum = 0;
+                for (int t = 0; t < n; t++) {
+                    double weight = filter.weight((first + t - center) / stretch);
+                    table[i * taps + t] = (float) weight;
+                    sum += weight;
+                }
+                if (sum != 0) {
+                    for (int t = 0; t < n; t++) {
+                        table[i * taps + t] /= sum;
+                    }
+                }
+                start[i] = first;
+                count[i] = n;
+            }
+        }
+    }
+
+    /**
+     * Processes a range of rows, splitting it into bands of {@link #BAND_ROWS} rows.
+     */
+    private static final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final RowRange work;
+
+        Band(int from, int to, RowRange work) {
+            this.from = from;
+            this.to = to;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BAND_ROWS || getPool() == null) {
+                work.process(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Band(from, middle, work), new Band(middle, to, work));
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowRange {
+        void process(int from, int to);
+    }
+}
@@ -0,0 +1,156 @@
+package com.mysite.core.servlets;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of the packed ARGB {@code int[]} buffers backing the rasters of image transformations, so that the multi-megabyte rasters of
+ * large images are reused instead of being allocated, and collected, for every request. Buffers are bucketed by quarter power of two
+ * lengths, so that a buffer is at most 25% longer than requested, each bucket keeping striped free lists to limit contention, and the
+ * arena retains at most its capacity in idle buffers.
+ */
+final class PixelBufferArena {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PixelBufferArena.class);
+
+    /**
+     * Smaller buffers are cheap to allocate and are not pooled.
+     */
+    private static final int MIN_BUCKET_BITS = 16;
+    private static final int MAX_BUCKET_BITS = 25;
+    /**
+     * Buckets per power of two.
+     */
+    private static final int STEPS = 4;
+    private static final int STRIPES = 8;
+    private static final int[] RGB_MASKS = { 0xff0000, 0xff00, 0xff };
+    private static final int[] ARGB_MASKS = { 0xff0000, 0xff00, 0xff, 0xff000000 };
+    private static final ColorModel RGB = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    private static final ColorModel ARGB = ColorModel.getRGBdefault();
+
+    private final Queue<int[]>[][] buckets;
+    private final long capacity;
+    private final AtomicLong retained = new AtomicLong();
+
+    /**
+     * @param capacity the maximum size, in bytes, of the idle buffers the arena retains
+     */
+    @SuppressWarnings("unchecked")
+    PixelBufferArena(long capacity) {
+        this.capacity = capacity;
+        this.buckets = new Queue[(MAX_BUCKET_BITS - MIN_BUCKET_BITS) * STEPS][STRIPES];
+        for (Queue<int[]>[] stripes : buckets) {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+    }
+
+    /**
+     * Takes a buffer of at least the given length from the pool, or allocates one. Pooled buffers are not cleared.
+     *
+     * @param length the minimum length
+     * @return the buffer
+     */
+    @NotNull
+    int[] acquire(int length) {
+        int bucket = getBucket(length);
+        if (bucket < 0) {
+            return new int[length];
+        }
+        Queue<int[]>[] stripes = buckets[bucket];
+        int stripe = getStripe();
+        for (int i = 0; i < STRIPES; i++) {
+            int[] buffer = stripes[(stripe + i) & (STRIPES - 1)].poll();
+            if (buffer != null) {
+                retained.addAndGet(-4L * buffer.length);
+                return buffer;
+            }
+        }
+        return new int[getBucketLength(bucket)];
+    }
+
+    /**
+     * Returns a buffer to the pool, unless the pool is full or the buffer was not allocated by {@link #acquire(int)}.
+     *
+     * @param buffer the buffer
+     */
+    void release(@NotNull int[] buffer) {
+        int bucket = getBucket(buffer.length);
+        if (bucket < 0 || buffer.length != getBucketLength(bucket)) {
+            return;
+        }
+        long size = 4L * buffer.length;
+        if (retained.addAndGet(size) > capacity) {
+            retained.addAndGet(-size);
+            LOG.debug("Pixel buffer arena is full; dropping a buffer of {} bytes.", size);
+            return;
+        }
+        buckets[bucket][getStripe()].offer(buffer);
+    }
+
+    /**
+     * @return the size, in bytes, of the idle buffers
+     */
+    long getRetained() {
+        return retained.get();
+    }
+
+    /**
+     * Creates a packed {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB} image over the given buffer.
+     *
+     * @param buffer the buffer, at least {@code width * height} long
+     * @param width  the image's width
+     * @param height the image's height
+     * @param alpha  whether the image has an alpha channel
+     * @return the image
+     */
+    @NotNull
+    static BufferedImage createImage(@NotNull int[] buffer, int width, int height, boolean alpha) {
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(buffer, width * height), width, height, width,
+                alpha ? ARGB_MASKS : RGB_MASKS, null);
+        return new BufferedImage(alpha ? ARGB : RGB, raster, false, null);
+    }
+
+    /**
+     * Returns the length of the buffer {@link #acquire(int)} returns for the given length, so that the memory actually taken by a raster
+     * can be reserved.
+     *
+     * @param length the minimum length
+     * @return the buffer's length
+     */
+    static int getBufferLength(int length) {
+        int bucket = getBucket(length);
+        return bucket < 0 ? length : getBucketLength(bucket);
+    }
+
+    private static int getBucket(int length) {
+        if (length <= 1 << MIN_BUCKET_BITS || length > 1 << MAX_BUCKET_BITS) {
+            return -1;
+        }
+        // 2^exponent < length <= 2^(exponent + 1), rounded up to a multiple of a quarter of 2^exponent: 5 to 8 quarters
+        int exponent = 31 - Integer.numberOfLeadingZeros(length - 1);
+        int step = 1 << (exponent - 2);
+        int steps = (length + step - 1) / step;
+        return (exponent - MIN_BUCKET_BITS) * STEPS + steps - STEPS - 1;
+    }
+
+    private static int getBucketLength(int bucket) {
+        int exponent = bucket / STEPS + MIN_BUCKET_BITS;
+        return (bucket % STEPS + STEPS + 1) << (exponent - 2);
+    }
+
+    private static int getStripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,69 @@
+package com.mysite.core.models.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Index of cache keys by the repository paths their values were computed from, e.g. the assets referenced by an image, so that a change
+ * only invalidates the keys of the paths it affects instead of testing every cached value.
+ */
+final class ReferenceIndex {
+
+    private final NavigableMap<String, Set<String>> keys = new TreeMap<>();
+
+    /**
+     * Indexes a key under the paths its value was computed from.
+     *
+     * @param key        the cache key
+     * @param references the paths
+     */
+    synchronized void add(@NotNull String key, @NotNull Collection<String> references) {
+        for (String reference : references) {
+            keys.computeIfAbsent(reference, path -> new HashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * Removes a key, once its value is no longer cached.
+     *
+     * @param key        the cache key
+     * @param references the paths it was indexed under
+     */
+    synchronized void remove(@NotNull String key, @NotNull Collection<String> references) {
+        for (String reference : references) {
+            Set<String> referencing = keys.get(reference);
+            if (referencing != null && referencing.remove(key) && referencing.isEmpty()) {
+                keys.remove(reference);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys affected by a change of the given path: the keys of the path itself, of its ancestors, e.g. the asset whose
+     * rendition changed, and of its descendants, e.g. the assets of a removed folder.
+     *
+     * @param path the changed path
+     * @return the affected keys
+     */
+    @NotNull
+    synchronized List<String> getAffectedKeys(@NotNull String path) {
+        List<String> affected = new ArrayList<>();
+        for (String ancestor = path; !ancestor.isEmpty(); ancestor = ancestor.substring(0, Math.max(0, ancestor.lastIndexOf('/')))) {
+            Set<String> referencing = keys.get(ancestor);
+            if (referencing != null) {
+                affected.addAll(referencing);
+            }
+        }
+        // '0' follows '/', so the sub map holds exactly the paths below the changed one
+        for (Set<String> referencing : keys.subMap(path + '/', false, path + '0', false).values()) {
+            affected.addAll(referencing);
+        }
+        return affected;
+    }
+}
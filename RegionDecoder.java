@@ -0,0 +1,133 @@
+package com.mysite.core.servlets;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes only the part of a rendition that contributes to the output: a source region and/or every n-th pixel, so that the decoded
+ * raster's size follows the output's size instead of the source's.
+ */
+final class RegionDecoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegionDecoder.class);
+
+    /**
+     * The decoded raster is kept at least this many times larger than the output, so that the final resize still has enough pixels to
+     * produce a smooth result.
+     */
+    private static final int RESAMPLING_HEADROOM = 2;
+
+    private RegionDecoder() {
+    }
+
+    /**
+     * Computes the subsampling factor to use when decoding {@code sourceWidth} pixels for an output of {@code targetWidth} pixels.
+     *
+     * @param sourceWidth the width of the decoded source (region), in pixels
+     * @param targetWidth the output width, in pixels; values {@code <= 0} disable subsampling
+     * @return the subsampling factor, {@code 1} meaning no subsampling
+     */
+    static int getSubsampling(int sourceWidth, int targetWidth) {
+        if (sourceWidth <= 0 || targetWidth <= 0) {
+            return 1;
+        }
+        return Math.max(1, sourceWidth / (targetWidth * RESAMPLING_HEADROOM));
+    }
+
+    /**
+     * Decodes a region of the rendition, reading only every {@code subsampling}-th pixel of every {@code subsampling}-th row.
+     *
+     * @param rendition   the rendition
+     * @param region      the source region to decode, {@code null} for the whole image
+     * @param subsampling the subsampling factor
+     * @param lease       the lease the decoded raster's buffer is taken from, if the reader can decode into a packed RGB raster; the
+     *                    buffer is returned to the lease if the rendition cannot be decoded
+     * @return the decoded image, or {@code null} if no reader can decode the rendition this way, in which case the rendition has to be
+     * decoded by its asset handler
+     */
+    @Nullable
+    static BufferedImage decode(@NotNull EnhancedRendition rendition, @Nullable Rectangle region, int subsampling,
+                                @NotNull TransformationBudget.Lease lease) {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(rendition.getMimeType());
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        BufferedImage destination = null;
+        try (InputStream stream = rendition.getStream(); ImageInputStream input = new MemoryCacheImageInputStream(stream)) {
+            reader.setInput(input, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            Rectangle sourceRegion = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+            if (region != null) {
+                sourceRegion = region.intersection(sourceRegion);
+                if (sourceRegion.isEmpty()) {
+                    return null;
+                }
+                param.setSourceRegion(sourceRegion);
+            }
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            Boolean alpha = getPackedDestinationAlpha(reader);
+            if (alpha != null) {
+                destination = lease.createImage((sourceRegion.width + subsampling - 1) / subsampling,
+                        (sourceRegion.height + subsampling - 1) / subsampling, alpha);
+                param.setDestination(destination);
+            }
+            BufferedImage image = reader.read(0, param);
+            LOG.debug("Decoded {}x{}px from {} (region {}, subsampling {}).", image.getWidth(), image.getHeight(), rendition.getPath(),
+                    region, subsampling);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Cannot decode rendition {} by region; falling back to its asset handler.", rendition.getPath(), e);
+            if (destination != null) {
+                lease.release(destination);
+            }
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Checks whether the reader can decode the image into a packed RGB or ARGB raster, which can be backed by a pooled buffer. Readers
+     * convert 8-bit RGB(A) samples into packed rasters, even when they don't list them among their image types.
+     *
+     * @return whether the packed raster has an alpha channel, {@code null} if the image's samples cannot be packed
+     */
+    @Nullable
+    private static Boolean getPackedDestinationAlpha(@NotNull ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            type = types.hasNext() ? types.next() : null;
+        }
+        if (type == null || type.getColorModel().getColorSpace().getType() != ColorSpace.TYPE_RGB) {
+            return null;
+        }
+        for (int band = 0; band < type.getNumBands(); band++) {
+            if (type.getBitsPerBand(band) != 8) {
+                return null;
+            }
+        }
+        boolean alpha = type.getColorModel().hasAlpha();
+        if (type.getNumBands() == (alpha ? 4 : 3)) {
+            return alpha;
+        }
+        return null;
+    }
+}
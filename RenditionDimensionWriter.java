@@ -0,0 +1,128 @@
+package com.mysite.core.servlets;
+
+import java.awt.Dimension;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.jetbrains.annotations.NotNull;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.day.cq.dam.api.DamConstants;
+
+/**
+ * Persists the dimensions read from the renditions' headers into the renditions' {@code tiff:ImageWidth} and {@code tiff:ImageLength}
+ * properties, in the background, so that later requests don't have to open the renditions' binaries. Requires a service user mapped to
+ * the {@value #SUBSERVICE} subservice with write access to the renditions below {@code /content/dam}.
+ */
+@Component(service = RenditionDimensionWriter.class)
+@Designate(ocd = RenditionDimensionWriter.Config.class)
+public class RenditionDimensionWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenditionDimensionWriter.class);
+    static final String SUBSERVICE = "rendition-dimension-writer";
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor executor;
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @ObjectClassDefinition(name = "MySite - Rendition Dimension Writer", description = "Stores the dimensions read from the renditions' " +
+            "headers in the renditions' metadata")
+    @interface Config {
+
+        @AttributeDefinition(name = "Enabled", description = "Write the dimensions back to the renditions")
+        boolean enabled() default false;
+
+        @AttributeDefinition(name = "Queue size", description = "Maximum number of renditions waiting to be written; further renditions " +
+                "are skipped until the queue drains")
+        int queue_size() default 1000;
+    }
+
+    @Activate
+    protected void activate(Config config) {
+        if (config.enabled()) {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, config.queue_size())),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "rendition-dimension-writer");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Schedules writing a rendition's dimension to its metadata. Does nothing if the writer is disabled, the rendition is already
+     * scheduled or the queue is full.
+     *
+     * @param renditionPath the rendition's path
+     * @param dimension     the rendition's dimension
+     */
+    void schedule(@NotNull String renditionPath, @NotNull Dimension dimension) {
+        ThreadPoolExecutor writer = executor;
+        if (writer == null || !pending.add(renditionPath)) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    write(renditionPath, dimension);
+                } finally {
+                    pending.remove(renditionPath);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(renditionPath);
+            LOGGER.debug("Dimension write-back queue is full; skipping {}.", renditionPath);
+        }
+    }
+
+    private void write(String renditionPath, Dimension dimension) {
+        Map<String, Object> authenticationInfo = Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE);
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(authenticationInfo)) {
+            Resource content = resolver.getResource(renditionPath + "/" + JcrConstants.JCR_CONTENT);
+            ModifiableValueMap properties = content != null ? content.adaptTo(ModifiableValueMap.class) : null;
+            if (properties == null) {
+                LOGGER.debug("Cannot write the dimension of rendition {}.", renditionPath);
+                return;
+            }
+            properties.put(DamConstants.TIFF_IMAGEWIDTH, (long) dimension.width);
+            properties.put(DamConstants.TIFF_IMAGELENGTH, (long) dimension.height);
+            resolver.commit();
+            LOGGER.debug("Stored dimension {}x{} of rendition {}.", dimension.width, dimension.height, renditionPath);
+        } catch (LoginException e) {
+            LOGGER.warn("Cannot log in as the {} service user; dimensions cannot be written back.", SUBSERVICE, e);
+        } catch (PersistenceException | RuntimeException e) {
+            LOGGER.warn("Cannot store the dimension of rendition {}.", renditionPath, e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.mysite.core.servlets;
+
+import java.awt.Dimension;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable snapshot of a rendition's metadata, as kept by the {@link RenditionMetadataIndex}.
+ */
+public final class RenditionInfo {
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final long size;
+    private final String mimeType;
+
+    RenditionInfo(@NotNull String name, int width, int height, long size, @Nullable String mimeType) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.size = size;
+        this.mimeType = mimeType;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Nullable
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Getter for the rendition's dimension.
+     *
+     * @return rendition's dimension if it was possible to determine, {@code null} otherwise
+     */
+    @Nullable
+    public Dimension getDimension() {
+        return width > 0 && height > 0 ? new Dimension(width, height) : null;
+    }
+}
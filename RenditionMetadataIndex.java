@@ -0,0 +1,151 @@
+package com.mysite.core.servlets;
+
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.Rendition;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Shared, bounded index of the renditions' metadata (dimension, size and mime type) of the assets rendered by the
+ * {@link AdaptiveImageServlet}, so that picking a rendition doesn't need to read any rendition binaries. Entries are invalidated when
+ * anything below the asset changes.
+ */
+@Component(
+        service = { RenditionMetadataIndex.class, ResourceChangeListener.class },
+        property = {
+                ResourceChangeListener.PATHS + "=/content/dam",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        })
+@Designate(ocd = RenditionMetadataIndex.Config.class)
+public class RenditionMetadataIndex implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenditionMetadataIndex.class);
+    private static final String JCR_CONTENT_SEGMENT = "/" + JcrConstants.JCR_CONTENT;
+
+    private Cache<String, List<RenditionInfo>> index = CacheBuilder.newBuilder().build();
+    /**
+     * Incremented by every change, so that metadata loaded while a change is being handled isn't put in the index after its
+     * invalidation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Reference
+    private ImagePipelineMetrics pipelineMetrics;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile RenditionDimensionWriter dimensionWriter;
+
+    @ObjectClassDefinition(name = "MySite - Rendition Metadata Index", description = "Caches the renditions' metadata of image assets")
+    @interface Config {
+
+        @AttributeDefinition(name = "Maximum assets", description = "Maximum number of assets whose renditions are indexed")
+        long max_assets() default 10000;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        index = CacheBuilder.newBuilder().maximumSize(config.max_assets()).build();
+    }
+
+    /**
+     * Returns the metadata of the asset's renditions, ordered by file size.
+     *
+     * @param asset the asset
+     * @return the renditions' metadata
+     */
+    @NotNull
+    List<RenditionInfo> getRenditions(@NotNull Asset asset) {
+        List<RenditionInfo> renditions = index.getIfPresent(asset.getPath());
+        if (renditions == null) {
+            long loadGeneration = generation.get();
+            renditions = load(asset);
+            if (generation.get() == loadGeneration) {
+                index.put(asset.getPath(), renditions);
+            }
+        }
+        return renditions;
+    }
+
+    /**
+     * Returns the metadata of the given rendition of an asset.
+     *
+     * @param asset         the asset
+     * @param renditionName the rendition's name
+     * @return the rendition's metadata, {@code null} if the asset doesn't have such a rendition
+     */
+    @Nullable
+    RenditionInfo getRendition(@NotNull Asset asset, @NotNull String renditionName) {
+        for (RenditionInfo rendition : getRenditions(asset)) {
+            if (rendition.getName().equals(renditionName)) {
+                return rendition;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onChange(@NotNull List<ResourceChange> changes) {
+        generation.incrementAndGet();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            int contentIndex = path.indexOf(JCR_CONTENT_SEGMENT);
+            if (contentIndex > 0) {
+                index.invalidate(path.substring(0, contentIndex));
+            } else {
+                // the asset itself or a whole folder was touched
+                index.invalidate(path);
+                if (change.getType() == ResourceChange.ChangeType.REMOVED) {
+                    String prefix = path + "/";
+                    index.asMap().keySet().removeIf(assetPath -> assetPath.startsWith(prefix));
+                }
+            }
+        }
+    }
+
+    private List<RenditionInfo> load(Asset asset) {
+        StageTimer timer = pipelineMetrics.newTimer();
+        long start = timer.start();
+        List<RenditionInfo> renditions = new ArrayList<>();
+        RenditionDimensionWriter writer = dimensionWriter;
+        for (Rendition rendition : asset.getRenditions()) {
+            EnhancedRendition enhancedRendition = new EnhancedRendition(rendition);
+            Dimension dimension = enhancedRendition.getDimension();
+            if (writer != null && enhancedRendition.isDimensionSniffed()) {
+                // the next load reads the dimension from the metadata instead of the binary
+                writer.schedule(rendition.getPath(), dimension);
+            }
+            renditions.add(new RenditionInfo(rendition.getName(), dimension != null ? dimension.width : 0,
+                    dimension != null ? dimension.height : 0, rendition.getSize(), rendition.getMimeType()));
+        }
+        renditions.sort(Comparator.comparingLong(RenditionInfo::getSize));
+        timer.stop(ImagePipelineMetrics.Stage.PROBE, start);
+        LOGGER.debug("Indexed {} renditions of asset {}.", renditions.size(), asset.getPath());
+        return Collections.unmodifiableList(renditions);
+    }
+}
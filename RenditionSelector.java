@@ -0,0 +1,23 @@
+package com.mysite.core.servlets;
+
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Picks the rendition the {@link AdaptiveImageServlet} transforms or streams for a requested width. The servlet binds the
+ * highest-ranked service; {@link CostBasedRenditionSelector} is the default implementation.
+ */
+public interface RenditionSelector {
+
+    /**
+     * Selects a rendition for the requested width.
+     *
+     * @param renditions the metadata of the asset's renditions, including the original
+     * @param width      the requested width, {@code 0} if the image is not resized
+     * @param mimeType   the mime type the image is delivered in
+     * @return the selected rendition, {@code null} if none is suitable and the original should be used
+     */
+    @Nullable
+    RenditionInfo select(@NotNull List<RenditionInfo> renditions, int width, @NotNull String mimeType);
+}
@@ -0,0 +1,64 @@
+package com.mysite.core.models.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import com.mysite.core.servlets.TransformationSpec;
+
+/**
+ * An image's decoded source URI template, e.g. {@code /path/image.coreimg.82{.width}.jpeg/content/dam/image.jpg}, compiled into the
+ * literal segments around its width slot, so that expanding it for a width is a plain concatenation.
+ */
+final class SrcUriTemplate {
+
+    private final String prefix;
+    private final String suffix;
+    private final boolean queryParameter;
+
+    private SrcUriTemplate(String prefix, String suffix, boolean queryParameter) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.queryParameter = queryParameter;
+    }
+
+    /**
+     * Compiles a decoded source URI template.
+     *
+     * @param template the decoded template
+     * @return the compiled template, or {@code null} if the template doesn't have a width slot
+     */
+    @Nullable
+    static SrcUriTemplate compile(@NotNull String template) {
+        int widthStart = template.indexOf(ImageDelegate.WIDTH);
+        if (widthStart < 0) {
+            return null;
+        }
+        boolean queryParameter = widthStart > 0 && template.charAt(widthStart - 1) == '=';
+        String suffix = template.substring(widthStart + ImageDelegate.WIDTH.length());
+        return new SrcUriTemplate(template.substring(0, widthStart), suffix, queryParameter);
+    }
+
+    /**
+     * Expands the template for the given widths.
+     *
+     * @param widths the widths
+     * @return the srcset, with one comma separated candidate per width
+     */
+    @NotNull
+    String toSrcset(@NotNull int[] widths) {
+        StringBuilder srcset = new StringBuilder(widths.length * (prefix.length() + suffix.length() + 16));
+        for (int width : widths) {
+            if (srcset.length() > 0) {
+                srcset.append(',');
+            }
+            srcset.append(prefix);
+            if (queryParameter) {
+                srcset.append(width);
+            } else {
+                // same selector grammar as the one parsed by the image servlet
+                TransformationSpec.appendWidthSelector(srcset, width);
+            }
+            srcset.append(suffix).append(' ').append(width).append('w');
+        }
+        return srcset.toString();
+    }
+}
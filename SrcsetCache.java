@@ -0,0 +1,90 @@
+package com.mysite.core.models.impl;
+
+import java.util.Optional;
+import java.util.function.Supplier;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Shared cache of the {@code src} and {@code srcset} strings rendered by the {@link ImageDelegate}, keyed by the image's file
+ * reference, its source URI template and the widths of its component's policy. As the strings are computed from their keys only, the
+ * entries never go stale: a changed policy or asset yields new keys, and the cache is merely bounded.
+ */
+@Component(service = SrcsetCache.class)
+@Designate(ocd = SrcsetCache.Config.class)
+public class SrcsetCache {
+
+    /**
+     * The cached strings, empty if the image doesn't have one.
+     */
+    private Cache<String, Optional<String>> entries = CacheBuilder.newBuilder().build();
+
+    @ObjectClassDefinition(name = "MySite - Srcset Cache", description = "Caches the src and srcset of the image components")
+    @interface Config {
+
+        @AttributeDefinition(name = "Maximum entries", description = "Maximum number of src and srcset strings cached")
+        long max_entries() default 10000;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        entries = CacheBuilder.newBuilder().maximumSize(config.max_entries()).build();
+    }
+
+    /**
+     * Returns an image's {@code src}, computing it the first time it's requested.
+     *
+     * @param fileReference the path of the referenced asset
+     * @param src           the {@code src} as provided by the image component
+     * @param loader        computes the {@code src} to render
+     * @return the {@code src} to render
+     */
+    @Nullable
+    String getSrc(@NotNull String fileReference, @NotNull String src, @NotNull Supplier<String> loader) {
+        return get("src|" + fileReference + '|' + src, loader);
+    }
+
+    /**
+     * Returns an image's {@code srcset}, compiling its source URI template the first time it's requested.
+     *
+     * @param fileReference  the path of the referenced asset
+     * @param srcUriTemplate the source URI template as provided by the image component
+     * @param variant        the variant of the srcset, e.g. the extension it's rendered with, {@code null} for the default one
+     * @param widths         the widths of the srcset
+     * @param compiler       compiles the template to expand, returns {@code null} if the image doesn't have a srcset
+     * @return the {@code srcset}, {@code null} if the image doesn't have a srcset
+     */
+    @Nullable
+    String getSrcset(@NotNull String fileReference, @NotNull String srcUriTemplate, @Nullable String variant, @NotNull int[] widths,
+                     @NotNull Supplier<SrcUriTemplate> compiler) {
+        StringBuilder key = new StringBuilder(srcUriTemplate.length() + fileReference.length() + widths.length * 5 + 16)
+                .append("srcset|").append(fileReference).append('|').append(StringUtils.defaultString(variant)).append('|');
+        for (int width : widths) {
+            key.append(width).append(',');
+        }
+        key.append('|').append(srcUriTemplate);
+        return get(key.toString(), () -> {
+            SrcUriTemplate template = compiler.get();
+            return template != null ? template.toSrcset(widths) : null;
+        });
+    }
+
+    private String get(String key, Supplier<String> loader) {
+        Optional<String> value = entries.getIfPresent(key);
+        if (value == null) {
+            value = Optional.ofNullable(loader.get());
+            entries.put(key, value);
+        }
+        return value.orElse(null);
+    }
+}
@@ -0,0 +1,109 @@
+package com.mysite.core.servlets;
+
+import java.util.Locale;
+import javax.servlet.http.HttpServletResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Times the pipeline stages of a single image request, recording them in the {@link ImagePipelineMetrics}. In debug mode the timings
+ * are also collected for the request's {@code Server-Timing} header.
+ */
+final class StageTimer {
+
+    /**
+     * Timer used while metrics are disabled; it doesn't read the clock nor record anything.
+     */
+    static final StageTimer NOOP = new StageTimer(null, false);
+
+    private static final String HEADER_SERVER_TIMING = "Server-Timing";
+
+    private final ImagePipelineMetrics metrics;
+    private final long[] durations;
+    private String renditionName;
+    private boolean committed;
+
+    StageTimer(@Nullable ImagePipelineMetrics metrics, boolean serverTiming) {
+        this.metrics = metrics;
+        this.durations = serverTiming ? new long[ImagePipelineMetrics.Stage.values().length] : null;
+    }
+
+    /**
+     * @return the start time of a stage, to be passed to {@link #stop(ImagePipelineMetrics.Stage, long)}
+     */
+    long start() {
+        return metrics != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param stage the stage
+     * @param start the stage's start time, as returned by {@link #start()}
+     */
+    void stop(@NotNull ImagePipelineMetrics.Stage stage, long start) {
+        if (metrics != null) {
+            long duration = System.nanoTime() - start;
+            metrics.record(stage, duration);
+            if (durations != null) {
+                durations[stage.ordinal()] += duration;
+            }
+        }
+    }
+
+    /**
+     * Adds to one of the pipeline counters.
+     *
+     * @param counter the counter
+     * @param value   the value to add
+     */
+    void count(@NotNull ImagePipelineMetrics.Counter counter, long value) {
+        if (metrics != null) {
+            metrics.increment(counter, value);
+        }
+    }
+
+    /**
+     * Notes the rendition the request's image is produced from, sent in the {@code Server-Timing} header if in debug mode.
+     *
+     * @param name the rendition's name
+     */
+    void rendition(@NotNull String name) {
+        if (durations != null) {
+            renditionName = name;
+        }
+    }
+
+    /**
+     * Sends the stages timed so far in the {@code Server-Timing} header, if in debug mode. Has to be called before the response body is
+     * written; the stages that run while the body is written are therefore not part of the header.
+     *
+     * @param response the response
+     */
+    void commit(@NotNull HttpServletResponse response) {
+        if (durations == null || committed || response.isCommitted()) {
+            return;
+        }
+        committed = true;
+        StringBuilder header = new StringBuilder();
+        for (ImagePipelineMetrics.Stage stage : ImagePipelineMetrics.Stage.values()) {
+            long duration = durations[stage.ordinal()];
+            if (duration > 0) {
+                if (header.length() > 0) {
+                    header.append(", ");
+                }
+                header.append(stage.name().toLowerCase(Locale.ROOT)).append(";dur=")
+                        .append(String.format(Locale.ROOT, "%.3f", duration / 1_000_000d));
+            }
+        }
+        if (renditionName != null) {
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            header.append("rendition;desc=\"").append(renditionName.replace("\"", "")).append('"');
+        }
+        if (header.length() > 0) {
+            response.setHeader(HEADER_SERVER_TIMING, header.toString());
+        }
+    }
+}
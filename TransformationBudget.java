@@ -0,0 +1,235 @@
+package com.mysite.core.servlets;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control for image transformations. A transformation has to reserve a slot and the estimated memory of the raster it is
+ * about to decode (width &times; height &times; 4 bytes) before decoding; requests queue in arrival order for a bounded time and are
+ * rejected once it elapses.
+ */
+class TransformationBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransformationBudget.class);
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int BYTES_PER_PERMIT = 1024;
+
+    private final Semaphore slots;
+    private final int maxConcurrent;
+    private final Semaphore memory;
+    private final int memoryPermits;
+    private final long maxWait;
+    private final int retryAfter;
+    private final PixelBufferArena arena;
+
+    /**
+     * @param maxConcurrent the maximum number of concurrent transformations
+     * @param memoryBudget  the maximum estimated raster memory of the concurrent transformations, in bytes
+     * @param maxWait       the maximum time, in milliseconds, a transformation waits for its reservation
+     * @param retryAfter    the delay, in seconds, suggested to rejected clients
+     * @param arena         the pool the rasters' buffers are taken from, {@code null} to allocate them
+     */
+    TransformationBudget(int maxConcurrent, long memoryBudget, long maxWait, int retryAfter, @Nullable PixelBufferArena arena) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.slots = new Semaphore(this.maxConcurrent, true);
+        this.memoryPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / BYTES_PER_PERMIT));
+        this.memory = new Semaphore(memoryPermits, true);
+        this.maxWait = maxWait;
+        this.retryAfter = retryAfter;
+        this.arena = arena;
+    }
+
+    /**
+     * Opens a lease, to be closed once the transformation has completed. A lease holds no reservation until
+     * {@link Lease#reserve(int, int)} is called, so transformations that end up streaming a rendition as-is don't consume any budget.
+     *
+     * @return the lease
+     */
+    @NotNull
+    Lease lease() {
+        return new Lease();
+    }
+
+    /**
+     * @return the number of transformations currently holding a slot
+     */
+    int getActiveTransformations() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    final class Lease implements AutoCloseable {
+
+        private boolean slot;
+        private int permits;
+        private List<int[]> buffers;
+
+        private Lease() {
+        }
+
+        /**
+         * Reserves the memory for decoding a raster of the given dimension.
+         *
+         * @param width  the raster's width
+         * @param height the raster's height
+         * @return the permits reserved, to be handed to {@link #unreserve(int)} if the raster isn't created after all
+         * @throws TransformationRejectedException if the reservation cannot be made in time
+         */
+        int reserve(int width, int height) throws TransformationRejectedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+            long pixels = (long) width * height;
+            if (arena != null && pixels <= Integer.MAX_VALUE) {
+                // pooled buffers are longer than requested
+                pixels = PixelBufferArena.getBufferLength((int) pixels);
+            }
+            int requested = (int) Math.min(memoryPermits - permits, Math.max(1, pixels * BYTES_PER_PIXEL / BYTES_PER_PERMIT));
+            try {
+                if (!slot) {
+                    if (!slots.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                        throw reject(width, height);
+                    }
+                    slot = true;
+                }
+                if (requested > 0) {
+                    if (!memory.tryAcquire(requested, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        throw reject(width, height);
+                    }
+                    permits += requested;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject(width, height);
+            }
+            return Math.max(0, requested);
+        }
+
+        /**
+         * Returns the memory reserved for a raster that won't be created, e.g. before reserving the memory of another way to decode it.
+         *
+         * @param reserved the permits returned by {@link #reserve(int, int)}
+         */
+        void unreserve(int reserved) {
+            int released = Math.min(reserved, permits);
+            if (released > 0) {
+                memory.release(released);
+                permits -= released;
+            }
+        }
+
+        /**
+         * Takes a pixel buffer of at least the given length, which stays in use until the lease is closed.
+         *
+         * @param length the minimum length
+         * @return the buffer, not cleared
+         */
+        @NotNull
+        int[] acquire(int length) {
+            if (arena == null) {
+                return new int[length];
+            }
+            int[] buffer = arena.acquire(length);
+            if (buffers == null) {
+                buffers = new ArrayList<>(4);
+            }
+            buffers.add(buffer);
+            return buffer;
+        }
+
+        /**
+         * Creates a packed RGB or ARGB image over a pixel buffer that stays in use until the lease is closed.
+         *
+         * @param width  the image's width
+         * @param height the image's height
+         * @param alpha  whether the image has an alpha channel
+         * @return the image, whose pixels are not cleared
+         */
+        @NotNull
+        BufferedImage createImage(int width, int height, boolean alpha) {
+            return PixelBufferArena.createImage(acquire(width * height), width, height, alpha);
+        }
+
+        /**
+         * Returns the pixel buffer backing an image created by {@link #createImage(int, int, boolean)} before the lease is closed, for
+         * transformations producing many intermediate images. The image must not be used afterwards.
+         *
+         * @param image the image
+         */
+        void release(@NotNull BufferedImage image) {
+            release(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        }
+
+        /**
+         * Returns a pixel buffer taken by {@link #acquire(int)} before the lease is closed. The buffer must not be used afterwards.
+         *
+         * @param buffer the buffer
+         */
+        void release(@NotNull int[] buffer) {
+            if (buffers == null) {
+                return;
+            }
+            for (int i = buffers.size() - 1; i >= 0; i--) {
+                if (buffers.get(i) == buffer) {
+                    buffers.remove(i);
+                    arena.release(buffer);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (buffers != null) {
+                // the images backed by these buffers have been encoded by now
+                for (int[] buffer : buffers) {
+                    arena.release(buffer);
+                }
+                buffers = null;
+            }
+            if (permits > 0) {
+                memory.release(permits);
+                permits = 0;
+            }
+            if (slot) {
+                slots.release();
+                slot = false;
+            }
+        }
+
+        private TransformationRejectedException reject(int width, int height) {
+            LOG.debug("Rejecting transformation of a {}x{}px raster; {} of {}KB of the transformation budget are available.", width,
+                    height, memory.availablePermits(), memoryPermits);
+            return new TransformationRejectedException(String.format("No transformation budget available for a %dx%dpx raster", width,
+                    height), retryAfter);
+        }
+    }
+
+    /**
+     * Signals that a transformation was not admitted because the transformation budget is exhausted.
+     */
+    static class TransformationRejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfter;
+
+        TransformationRejectedException(String message, int retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return the delay, in seconds, after which the client may retry
+         */
+        int getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.mysite.core.servlets;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent identical image transformations on their derivative cache entry: the first request for a transformation key
+ * becomes the leader, performs the work and stores the result in the derivative cache, while the requests arriving before it completes
+ * wait for it and then stream the cached entry. No encoded image is held in memory to be handed over.
+ */
+class TransformationCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransformationCoalescer.class);
+
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    /**
+     * @param timeout the maximum time, in milliseconds, a request waits for the leader before transforming the image by itself
+     */
+    TransformationCoalescer(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Joins the in-flight transformation for the given key, or starts a new one if there is none.
+     *
+     * @param key the transformation key
+     * @return the flight; if {@link Flight#isLeader()} the caller has to {@link #complete(Flight)} it
+     */
+    @NotNull
+    Flight begin(@NotNull String key) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return new Flight(key, existing, false);
+        }
+        return new Flight(key, future, true);
+    }
+
+    /**
+     * Completes a flight started by the current request, releasing all waiting requests. If the leader didn't store a derivative, e.g.
+     * because the rendition was streamed as-is or the transformation failed, the waiting requests process the image by themselves.
+     *
+     * @param flight the flight, which has to be led by the current request
+     */
+    void complete(@NotNull Flight flight) {
+        inFlight.remove(flight.key, flight.future);
+        flight.future.complete(null);
+    }
+
+    /**
+     * Waits for the leader of the given flight to complete.
+     *
+     * @param flight the flight, which is led by another request
+     * @param timer  the request's stage timer, which counts the waits that time out
+     * @return {@code true} if the leader completed in time, in which case its derivative may be cached
+     */
+    boolean await(@NotNull Flight flight, @NotNull StageTimer timer) {
+        try {
+            flight.future.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            timer.count(ImagePipelineMetrics.Counter.COALESCING_TIMEOUT, 1);
+            LOG.debug("Timed out after {}ms waiting for transformation {}.", timeout, flight.key);
+        } catch (ExecutionException e) {
+            LOG.debug("Transformation {} failed in the leading request.", flight.key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    static final class Flight {
+
+        private final String key;
+        private final CompletableFuture<Void> future;
+        private final boolean leader;
+
+        private Flight(String key, CompletableFuture<Void> future, boolean leader) {
+            this.key = key;
+            this.future = future;
+            this.leader = leader;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+    }
+}
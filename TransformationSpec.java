@@ -0,0 +1,350 @@
+package com.mysite.core.servlets;
+
+import java.awt.Rectangle;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.ValueMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adobe.cq.wcm.core.components.models.Image;
+import com.day.cq.commons.ImageResource;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * The canonical, immutable description of an image transformation: the output width, quality and mime type requested through the
+ * selectors and the extension, and the crop, rotation and flips configured on the image component. Instances are interned, so that
+ * requests for the same transformation share one instance, and are identified in cache keys and ETags by their {@link #getKey() key}.
+ * <p>
+ * The selectors follow the grammar {@code handler}, {@code handler.width} or {@code handler.quality.width}; see
+ * {@link #parseSelectors(String)} and {@link #appendWidthSelector(StringBuilder, int)}.
+ */
+public final class TransformationSpec {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransformationSpec.class);
+    private static final Interner<TransformationSpec> INTERNER = Interners.newWeakInterner();
+    private static final int INVALID = -1;
+    private static final int MAX_SELECTORS = 3;
+
+    private final int width;
+    private final int quality;
+    private final String mimeType;
+    private final boolean cropped;
+    private final int cropX;
+    private final int cropY;
+    private final int cropWidth;
+    private final int cropHeight;
+    private final int rotation;
+    private final boolean flipHorizontally;
+    private final boolean flipVertically;
+    private final int hashCode;
+    private String key;
+
+    private TransformationSpec(int width, int quality, @Nullable String mimeType, @Nullable Rectangle crop, int rotation,
+                               boolean flipHorizontally, boolean flipVertically) {
+        this.width = width;
+        this.quality = quality;
+        this.mimeType = mimeType;
+        this.cropped = crop != null;
+        this.cropX = cropped ? crop.x : 0;
+        this.cropY = cropped ? crop.y : 0;
+        this.cropWidth = cropped ? crop.width : 0;
+        this.cropHeight = cropped ? crop.height : 0;
+        this.rotation = rotation;
+        this.flipHorizontally = flipHorizontally;
+        this.flipVertically = flipVertically;
+        // computed once, as every lookup in the interner hashes the spec
+        int hash = width;
+        hash = 31 * hash + quality;
+        hash = 31 * hash + (cropped ? 1 : 0);
+        hash = 31 * hash + cropX;
+        hash = 31 * hash + cropY;
+        hash = 31 * hash + cropWidth;
+        hash = 31 * hash + cropHeight;
+        hash = 31 * hash + rotation;
+        hash = 31 * hash + ((flipHorizontally ? 1 : 0) | (flipVertically ? 2 : 0));
+        this.hashCode = 31 * hash + (mimeType != null ? mimeType.hashCode() : 0);
+    }
+
+    /**
+     * Returns the interned spec for a transformation.
+     *
+     * @param width            the output width, {@code 0} to keep the source's width
+     * @param quality          the output quality, in percentage, {@code 0} if not requested
+     * @param mimeType         the output mime type, {@code null} if not known yet
+     * @param crop             the cropping rectangle, {@code null} if the image is not cropped
+     * @param rotation         the rotation angle, in degrees
+     * @param flipHorizontally whether the image is flipped horizontally
+     * @param flipVertically   whether the image is flipped vertically
+     * @return the interned spec
+     */
+    @NotNull
+    public static TransformationSpec of(int width, int quality, @Nullable String mimeType, @Nullable Rectangle crop, int rotation,
+                                        boolean flipHorizontally, boolean flipVertically) {
+        return INTERNER.intern(new TransformationSpec(width, quality, mimeType, crop, rotation, flipHorizontally, flipVertically));
+    }
+
+    /**
+     * Returns the interned spec for a transformation of the image configured on a component.
+     *
+     * @param componentProperties the image component's properties, providing the crop, rotation and flips
+     * @param width               the output width, {@code 0} to keep the source's width
+     * @param quality             the output quality, in percentage
+     * @param mimeType            the output mime type
+     * @return the interned spec
+     */
+    @NotNull
+    public static TransformationSpec of(@NotNull ValueMap componentProperties, int width, int quality, @NotNull String mimeType) {
+        return of(width, quality, mimeType, getCropRect(componentProperties), getRotation(componentProperties),
+                componentProperties.get(Image.PN_FLIP_HORIZONTAL, Boolean.FALSE), componentProperties.get(Image.PN_FLIP_VERTICAL,
+                        Boolean.FALSE));
+    }
+
+    /**
+     * Parses a request's selector string, {@code handler}, {@code handler.width} or {@code handler.quality.width}, without splitting it.
+     * As with a split that omits empty strings and trims the results, empty selectors and surrounding whitespace are ignored.
+     *
+     * @param selectors the request's selector string
+     * @return the interned spec holding the requested width and quality, {@code 0} for the ones not requested
+     * @throws IllegalArgumentException if the selector string is not valid
+     */
+    @NotNull
+    public static TransformationSpec parseSelectors(@Nullable String selectors) throws IllegalArgumentException {
+        if (StringUtils.isEmpty(selectors)) {
+            throw new IllegalArgumentException("Expected 1, 2 or 3 selectors instead got empty selector");
+        }
+        int count = 0;
+        int second = 0;
+        int third = 0;
+        int length = selectors.length();
+        int start = 0;
+        while (start <= length) {
+            int end = selectors.indexOf('.', start);
+            if (end < 0) {
+                end = length;
+            }
+            int from = start;
+            int to = end;
+            while (from < to && Character.isWhitespace(selectors.charAt(from))) {
+                from++;
+            }
+            while (to > from && Character.isWhitespace(selectors.charAt(to - 1))) {
+                to--;
+            }
+            if (from < to) {
+                count++;
+                if (count == 2) {
+                    second = parsePositive(selectors, from, to);
+                } else if (count == 3) {
+                    third = parsePositive(selectors, from, to);
+                }
+            }
+            start = end + 1;
+        }
+        if (count > MAX_SELECTORS) {
+            throw new IllegalArgumentException("Expected 1, 2 or 3 selectors, instead got: " + count);
+        }
+        int width = count == 3 ? third : count == 2 ? second : 0;
+        int quality = count == 3 ? second : 0;
+        if (width == INVALID) {
+            throw new IllegalArgumentException("Third selector must contain a valid width information (selector > 0)");
+        }
+        if (quality == INVALID || quality > 100) {
+            throw new IllegalArgumentException("Second selector must be a valid quality in percentage (100 <= selector > 0)");
+        }
+        return of(width, quality, null, null, 0, false, false);
+    }
+
+    /**
+     * Appends the selector requesting a width to a URL being built, i.e. the {@code .width} that follows the handler or quality
+     * selector.
+     *
+     * @param url   the URL being built, ending with the handler or quality selector
+     * @param width the width
+     * @return the {@code url} builder
+     */
+    @NotNull
+    public static StringBuilder appendWidthSelector(@NotNull StringBuilder url, int width) {
+        return url.append('.').append(width);
+    }
+
+    /**
+     * Returns the interned spec of the same transformation to another width.
+     *
+     * @param width the output width
+     * @return the interned spec
+     */
+    @NotNull
+    public TransformationSpec withWidth(int width) {
+        if (width == this.width) {
+            return this;
+        }
+        return of(width, quality, mimeType, getCrop(), rotation, flipHorizontally, flipVertically);
+    }
+
+    /**
+     * @return the output width, {@code 0} to keep the source's width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the output quality, in percentage, {@code 0} if not requested
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return the output mime type, {@code null} if not known yet
+     */
+    @Nullable
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return a copy of the cropping rectangle, {@code null} if the image is not cropped
+     */
+    @Nullable
+    public Rectangle getCrop() {
+        return cropped ? new Rectangle(cropX, cropY, cropWidth, cropHeight) : null;
+    }
+
+    /**
+     * @return the rotation angle, in degrees
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    public boolean isFlippedHorizontally() {
+        return flipHorizontally;
+    }
+
+    public boolean isFlippedVertically() {
+        return flipVertically;
+    }
+
+    /**
+     * @return {@code true} if the image is cropped, rotated or flipped, in which case the source has to be decoded
+     */
+    public boolean hasGeometry() {
+        return cropped || rotation != 0 || flipHorizontally || flipVertically;
+    }
+
+    /**
+     * Returns the canonical text of the spec, which identifies the transformation in cache keys and ETags. The text is built once per
+     * interned instance.
+     *
+     * @return the key
+     */
+    @NotNull
+    public String getKey() {
+        String result = key;
+        if (result == null) {
+            StringBuilder builder = new StringBuilder(64).append(width).append('|').append(quality).append('|');
+            if (cropped) {
+                builder.append(cropX).append(',').append(cropY).append(',').append(cropWidth).append(',').append(cropHeight);
+            }
+            builder.append('|').append(rotation).append('|').append(flipHorizontally).append('|').append(flipVertically).append('|');
+            if (mimeType != null) {
+                builder.append(mimeType);
+            }
+            result = builder.toString();
+            key = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof TransformationSpec)) {
+            return false;
+        }
+        TransformationSpec other = (TransformationSpec) object;
+        return hashCode == other.hashCode && width == other.width && quality == other.quality && cropped == other.cropped &&
+                cropX == other.cropX && cropY == other.cropY && cropWidth == other.cropWidth && cropHeight == other.cropHeight &&
+                rotation == other.rotation && flipHorizontally == other.flipHorizontally && flipVertically == other.flipVertically &&
+                StringUtils.equals(mimeType, other.mimeType);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+
+    /**
+     * Retrieves the cropping rectangle, if one is defined for the image.
+     *
+     * @param properties the image component's properties
+     * @return the cropping rectangle, if one is found, {@code null} otherwise
+     */
+    @Nullable
+    private static Rectangle getCropRect(@NotNull ValueMap properties) {
+        String csv = properties.get(ImageResource.PN_IMAGE_CROP, String.class);
+        if (StringUtils.isNotEmpty(csv)) {
+            try {
+                int ratio = csv.indexOf('/');
+                if (ratio >= 0) {
+                    // skip ratio
+                    csv = csv.substring(0, ratio);
+                }
+                String[] coords = csv.split(",");
+                int x1 = Integer.parseInt(coords[0]);
+                int y1 = Integer.parseInt(coords[1]);
+                int x2 = Integer.parseInt(coords[2]);
+                int y2 = Integer.parseInt(coords[3]);
+                return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+            } catch (RuntimeException e) {
+                LOG.warn(String.format("Invalid cropping rectangle %s.", csv), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the rotation angle for the image, if one is present. Typically this should be a value between 0 and 360.
+     *
+     * @param properties the image component's properties
+     * @return the rotation angle
+     */
+    private static int getRotation(@NotNull ValueMap properties) {
+        String rotationString = properties.get(ImageResource.PN_IMAGE_ROTATE, String.class);
+        if (rotationString != null) {
+            try {
+                return Integer.parseInt(rotationString);
+            } catch (NumberFormatException e) {
+                LOG.warn(String.format("Invalid rotation value %s.", rotationString), e);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Parses a selector made of decimal digits only.
+     *
+     * @return the selector's value, or {@link #INVALID} if it's not a number greater than zero
+     */
+    private static int parsePositive(String selectors, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = selectors.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+        }
+        return value > 0 ? value : INVALID;
+    }
+}